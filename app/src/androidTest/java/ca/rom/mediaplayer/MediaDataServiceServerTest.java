@@ -0,0 +1,201 @@
+package ca.rom.mediaplayer;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test of media list and item lookups against a local mock server
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaDataServiceServerTest {
+
+    private MockWebServer server;
+
+    private MediaDataService mediaData;
+
+    private final ConcurrentLinkedQueue<MediaItem> received = new ConcurrentLinkedQueue<>();
+
+    private CountDownLatch latch;
+
+    private final EventStream.Listener<MediaItem> listener = new EventStream.Listener<MediaItem>() {
+        @Override
+        public void onEvent(MediaItem mediaItem) {
+            received.add(mediaItem);
+            latch.countDown();
+        }
+    };
+
+    /**
+     * Serves a three item media list with an ETag, answering 304 when asked with it, and lookups
+     * for each item either one at a time or batched
+     */
+    private static class MediaDispatcher extends Dispatcher {
+        private final boolean batch;
+
+        MediaDispatcher(boolean batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            String path = request.getPath();
+            if (path.equals("/media")) {
+                if ("\"v1\"".equals(request.getHeader("If-None-Match"))) {
+                    return new MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\"");
+                }
+                return new MockResponse().setHeader("ETag", "\"v1\"").setBody("{\"media_items\": [\"a\", \"b\", \"c\"], \"batch_resolve\": " + batch + "}");
+            }
+            if (path.startsWith("/media?ids=")) {
+                if (!batch) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                StringBuilder body = new StringBuilder("{\"id\": [");
+                String[] ids = path.substring("/media?ids=".length()).split(",");
+                for (int i = 0; i < ids.length; i++) {
+                    body.append(i > 0 ? "," : "").append(item(ids[i]));
+                }
+                return new MockResponse().setBody(body.append("]}").toString());
+            }
+            if (path.startsWith("/media/")) {
+                return new MockResponse().setBody("{\"id\": [" + item(path.substring("/media/".length())) + "]}");
+            }
+            return new MockResponse().setResponseCode(404);
+        }
+
+        private static String item(String id) {
+            return "{\"id\": \"" + id + "\", \"url\": \"http://example.com/" + id + ".m3u8\"}";
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context appContext = InstrumentationRegistry.getTargetContext();
+
+        // Make sure a cold start doesn't play a saved playlist instead of asking the server
+        MediaDataService.Config.fromResources(appContext).snapshotFile.delete();
+
+        server = new MockWebServer();
+        mediaData = MediaDataService.getInstance(appContext);
+        mediaData.addListener(listener, Executors.newSingleThreadExecutor());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Context appContext = InstrumentationRegistry.getTargetContext();
+        mediaData.removeListener(listener);
+        setMediaListUrl(appContext.getString(R.string.media_list_url));
+        server.shutdown();
+    }
+
+    @Test
+    public void resolvesWholeListInOneBatchRequest() throws Exception {
+        server.setDispatcher(new MediaDispatcher(true));
+        server.start();
+        setMediaListUrl(server.url("/media").toString());
+
+        latch = new CountDownLatch(3);
+        refreshMediaList();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        assertReceivedInOrder();
+
+        // One for the list, one for all of the items
+        assertEquals(2, server.getRequestCount());
+        server.takeRequest();
+        assertEquals("/media?ids=a,b,c", server.takeRequest().getPath());
+    }
+
+    @Test
+    public void fallsBackToSingleLookupsWithoutBatchSupport() throws Exception {
+        server.setDispatcher(new MediaDispatcher(false));
+        server.start();
+        setMediaListUrl(server.url("/media").toString());
+
+        latch = new CountDownLatch(3);
+        refreshMediaList();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        assertReceivedInOrder();
+
+        // One for the list and one per item
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void unchangedListIsRevalidatedWithoutLookups() throws Exception {
+        server.setDispatcher(new MediaDispatcher(false));
+        server.start();
+        setMediaListUrl(server.url("/media").toString());
+
+        latch = new CountDownLatch(3);
+        refreshMediaList();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertReceivedInOrder();
+        assertEquals(4, server.getRequestCount());
+        for (int i = 0; i < 4; i++) {
+            server.takeRequest();
+        }
+
+        // Starting over sends the ETag, gets a 304 and replays the items without looking them up
+        latch = new CountDownLatch(3);
+        refreshMediaList();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertReceivedInOrder();
+        assertEquals(5, server.getRequestCount());
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    /**
+     * Points the service at the URL on the playback thread, like the app would
+     */
+    private void setMediaListUrl(final String mediaListUrl) throws Exception {
+        PlaybackThread.run(new Runnable() {
+            @Override
+            public void run() {
+                mediaData.setMediaListUrl(mediaListUrl);
+            }
+        });
+    }
+
+    /**
+     * Starts the service over on the playback thread, like the app would, taking every item
+     * rather than only what a player has room for
+     */
+    private void refreshMediaList() throws Exception {
+        PlaybackThread.run(new Runnable() {
+            @Override
+            public void run() {
+                mediaData.setMediaItemDemand(MediaDataService.UNLIMITED_DEMAND);
+                mediaData.refreshMediaList();
+            }
+        });
+    }
+
+    private void assertReceivedInOrder() {
+        String[] ids = {"a", "b", "c"};
+        for (int i = 0; i < ids.length; i++) {
+            MediaItem mediaItem = received.remove();
+            assertEquals(i, mediaItem.sequenceNumber);
+            assertEquals(ids[i], mediaItem.id);
+            assertEquals("http://example.com/" + ids[i] + ".m3u8", mediaItem.url);
+        }
+    }
+}
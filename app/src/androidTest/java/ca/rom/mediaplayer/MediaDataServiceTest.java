@@ -7,6 +7,9 @@ import android.support.test.runner.AndroidJUnit4;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
 import static org.junit.Assert.*;
 
 /**
@@ -30,21 +33,34 @@ public class MediaDataServiceTest {
         Context appContext = InstrumentationRegistry.getTargetContext();
 
         // Init singleton
-        MediaDataService mediaData = MediaDataService.getInstance(appContext);
-        MockObserver mockObserver = new MockObserver();
-        mediaData.addObserver(mockObserver);
+        final MediaDataService mediaData = MediaDataService.getInstance(appContext);
+        MockListener mockListener = new MockListener();
+        mediaData.addListener(mockListener, Executors.newSingleThreadExecutor());
 
-        // Kick of the service
-        mediaData.refreshMediaList();
-        mockObserver.waitUntilUpdateIsCalled();
+        // Kick of the service, on the playback thread like the app does, taking every item
+        // rather than only what a player has room for
+        PlaybackThread.run(new Runnable() {
+            @Override
+            public void run() {
+                mediaData.setMediaItemDemand(MediaDataService.UNLIMITED_DEMAND);
+                mediaData.refreshMediaList();
+            }
+        });
+        mockListener.waitUntilUpdateIsCalled();
+        int total = PlaybackThread.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mediaData.getTotalMediaItemCount();
+            }
+        });
 
-        // Ensure indexes are in sync with the mock observer
-        for (int i = 0; i < mediaData.getTotalMediaItemCount(); i++) {
+        // Ensure indexes are in sync with the mock listener
+        for (int i = 0; i < total; i++) {
             // check out queue is insync
-            MediaItem mediaItem = mockObserver.queue.remove();
+            MediaItem mediaItem = mockListener.queue.remove();
             assertEquals(mediaItem.sequenceNumber, i);
-            if (i < mediaData.getTotalMediaItemCount() - 1) {
-                mockObserver.waitUntilUpdateIsCalled();
+            if (i < total - 1) {
+                mockListener.waitUntilUpdateIsCalled();
             }
         }
 
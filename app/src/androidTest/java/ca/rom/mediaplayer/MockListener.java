@@ -0,0 +1,28 @@
+package ca.rom.mediaplayer;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+public class MockListener implements EventStream.Listener<MediaItem> {
+
+    private final Semaphore updates = new Semaphore(0);
+
+    public ConcurrentLinkedQueue<MediaItem> queue = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void onEvent(MediaItem mediaItem) {
+        queue.add(mediaItem);
+        updates.release();
+    }
+
+    /**
+     * Used to wait until the next media item has been delivered, handy for unit testing
+     * @throws InterruptedException
+     */
+    public void waitUntilUpdateIsCalled() throws InterruptedException {
+        Log.d("TEST", "Waiting until called for next media URL.");
+        updates.acquire();
+    }
+}
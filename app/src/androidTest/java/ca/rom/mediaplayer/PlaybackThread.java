@@ -0,0 +1,61 @@
+package ca.rom.mediaplayer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Calls into the media data service from tests the way the app does, on the playback thread,
+ * and waits for the call to finish
+ */
+public class PlaybackThread {
+
+    /**
+     * Runs the runnable on the playback thread
+     * @param runnable What to run
+     * @throws Exception Whatever it threw, or the wait was interrupted
+     */
+    public static void run(final Runnable runnable) throws Exception {
+        call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                runnable.run();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Calls the callable on the playback thread
+     * @param callable What to call
+     * @param <T> What it returns
+     * @return What it returned
+     * @throws Exception Whatever it threw, or the wait was interrupted
+     */
+    public static <T> T call(final Callable<T> callable) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        final Exception[] error = new Exception[1];
+        PlaybackThreadExecutor.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = callable.call();
+                } catch (Exception e) {
+                    error[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        if (error[0] != null) {
+            throw error[0];
+        }
+        @SuppressWarnings("unchecked")
+        T value = (T) result[0];
+        return value;
+    }
+}
@@ -0,0 +1,128 @@
+package ca.rom.mediaplayer;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before retrying a failed request.  Delays grow exponentially with
+ * jitter so a fleet of devices doesn't retry in lock step, each request has a budget of attempts,
+ * and a circuit breaker holds every request back for a cool down once enough failures happen in
+ * a row.
+ */
+public class BackoffPolicy {
+    /**
+     * Returned instead of a delay when the request has used up its attempts
+     */
+    public static final long GIVE_UP = -1;
+
+    /**
+     * Where we get the time from, a fake one in tests
+     */
+    private final Clock clock;
+
+    /**
+     * Where we get the jitter from
+     */
+    private final Random random;
+
+    /**
+     * Delay after the first failure, doubled for every failure after that
+     */
+    private final long baseDelayMs;
+
+    /**
+     * The delay never grows past this
+     */
+    private final long maxDelayMs;
+
+    /**
+     * How many times a single request may be tried before we give up on it
+     */
+    private final int maxAttempts;
+
+    /**
+     * How many failures in a row, across all requests, open the circuit breaker
+     */
+    private final int breakerThreshold;
+
+    /**
+     * How long the circuit breaker stays open
+     */
+    private final long breakerCooldownMs;
+
+    /**
+     * Failures since the last success
+     */
+    private int consecutiveFailures = 0;
+
+    /**
+     * When the circuit breaker lets requests through again
+     */
+    private long breakerOpenUntil = 0;
+
+    /**
+     * Constructor
+     * @param clock Time source
+     * @param random Jitter source
+     * @param baseDelayMs Delay after the first failure
+     * @param maxDelayMs Cap on the delay
+     * @param maxAttempts Attempts per request, including the first one
+     * @param breakerThreshold Failures in a row that open the circuit breaker
+     * @param breakerCooldownMs How long the circuit breaker stays open
+     */
+    public BackoffPolicy(Clock clock, Random random, long baseDelayMs, long maxDelayMs,
+                         int maxAttempts, int breakerThreshold, long breakerCooldownMs) {
+        this.clock = clock;
+        this.random = random;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.maxAttempts = maxAttempts;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerCooldownMs = breakerCooldownMs;
+    }
+
+    /**
+     * Records a failed attempt and works out when to try again
+     * @param attempt How many times this request has now failed, starting at 1
+     * @return Milliseconds to wait before retrying, or GIVE_UP
+     */
+    public synchronized long onFailure(int attempt) {
+        consecutiveFailures++;
+        if (consecutiveFailures >= breakerThreshold) {
+            // Open, or re-open after a failed trial request
+            breakerOpenUntil = clock.elapsedRealtime() + breakerCooldownMs;
+        }
+
+        if (attempt >= maxAttempts) {
+            return GIVE_UP;
+        }
+
+        // Exponential, capped, with the top half jittered
+        long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 30));
+        long half = ceiling / 2;
+        long delay = half + (long) (random.nextDouble() * (ceiling - half));
+
+        return Math.max(delay, getBlockedForMs());
+    }
+
+    /**
+     * Records a successful request, closing the circuit breaker
+     */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        breakerOpenUntil = 0;
+    }
+
+    /**
+     * @return Whether the circuit breaker is currently holding requests back
+     */
+    public synchronized boolean isOpen() {
+        return getBlockedForMs() > 0;
+    }
+
+    /**
+     * @return How long a new request has to wait for the circuit breaker, 0 if it can go now
+     */
+    public synchronized long getBlockedForMs() {
+        return Math.max(0, breakerOpenUntil - clock.elapsedRealtime());
+    }
+}
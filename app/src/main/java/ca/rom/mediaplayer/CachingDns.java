@@ -0,0 +1,85 @@
+package ca.rom.mediaplayer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Dns;
+
+/**
+ * Remembers DNS answers for a while, so the API and every media segment request to the same
+ * hosts don't each go to the resolver.  Failed lookups aren't remembered, the next request tries
+ * again.
+ */
+public class CachingDns implements Dns {
+
+    /**
+     * A remembered answer
+     */
+    private static class Entry {
+        final List<InetAddress> addresses;
+        final long expiresAt;
+
+        Entry(List<InetAddress> addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Does the actual lookups
+     */
+    private final Dns delegate;
+
+    private final Clock clock;
+
+    /**
+     * How long an answer is good for
+     */
+    private final long ttlMs;
+
+    /**
+     * Answers by host name
+     */
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Constructor
+     * @param delegate Does the actual lookups, i.e., Dns.SYSTEM
+     * @param clock Where the time comes from
+     * @param ttlMs How long an answer is good for
+     */
+    public CachingDns(Dns delegate, Clock clock, long ttlMs) {
+        this.delegate = delegate;
+        this.clock = clock;
+        this.ttlMs = ttlMs;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        synchronized (entries) {
+            Entry entry = entries.get(hostname);
+            if (entry != null && clock.elapsedRealtime() < entry.expiresAt) {
+                return entry.addresses;
+            }
+        }
+
+        // Look up outside the lock so one slow host doesn't hold up the others
+        List<InetAddress> addresses = delegate.lookup(hostname);
+        synchronized (entries) {
+            entries.put(hostname, new Entry(addresses, clock.elapsedRealtime() + ttlMs));
+        }
+        return addresses;
+    }
+
+    /**
+     * Forgets every answer, i.e., when the network changes
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
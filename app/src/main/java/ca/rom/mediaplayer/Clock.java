@@ -0,0 +1,34 @@
+package ca.rom.mediaplayer;
+
+/**
+ * Source of time, swap it out for a fake one when testing anything time based
+ */
+public interface Clock {
+    /**
+     * The real clock
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return System.nanoTime() / 1000000;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Milliseconds since some fixed point in the past, only good for measuring intervals
+     * @return Current time in milliseconds
+     */
+    long elapsedRealtime();
+
+    /**
+     * Wall clock time, only for comparing against times that outlive the process, i.e., when a
+     * saved response expires.  Can jump when the user changes the time.
+     * @return Milliseconds since the epoch
+     */
+    long currentTimeMillis();
+}
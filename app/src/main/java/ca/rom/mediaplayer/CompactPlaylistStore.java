@@ -0,0 +1,452 @@
+package ca.rom.mediaplayer;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A media list kept in primitive arrays rather than a MediaItem, plus an id string, per entry, so
+ * a rolling playlist of 100k items costs a few megabytes in a handful of objects instead of
+ * hundreds of thousands of small ones for the GC to chase.  GUID ids are kept as two longs,
+ * anything else as the string.  Resolved URLs are split at the last slash and the part before it,
+ * i.e., the CDN path, is kept once per list.
+ *
+ * MediaItem objects are only built for the entries someone asks for and kept until they fall out
+ * of the window, so changes made to them aren't lost.  Not thread safe, hand other threads a copy.
+ */
+public class CompactPlaylistStore extends AbstractList<MediaItem> implements PlaylistView {
+
+    private static final byte UNRESOLVED = 0;
+
+    private static final byte RESOLVED = 1;
+
+    private static final byte FAILED = 2;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private int size = 0;
+
+    /**
+     * GUID ids as their high and low 64 bits
+     */
+    private long[] idHigh;
+
+    private long[] idLow;
+
+    /**
+     * Ids that aren't lowercase GUIDs, null until the first one, null entries are GUIDs
+     */
+    private String[] otherIds;
+
+    private int[] sequenceNumbers;
+
+    /**
+     * UNRESOLVED, RESOLVED or FAILED
+     */
+    private byte[] states;
+
+    /**
+     * Index into urlPrefixes of the part of each URL up to and including the last slash
+     */
+    private int[] urlPrefixIndexes;
+
+    /**
+     * The rest of each URL
+     */
+    private String[] urlSuffixes;
+
+    /**
+     * Every distinct URL prefix in the list
+     */
+    private final List<String> urlPrefixes = new ArrayList<>();
+
+    private final Map<String, Integer> urlPrefixLookup = new HashMap<>();
+
+    /**
+     * The entries that exist as objects right now, by index
+     */
+    private final Map<Integer, MediaItem> materialized = new HashMap<>();
+
+    public CompactPlaylistStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     * @param capacity How many entries to make room for up front
+     */
+    public CompactPlaylistStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        idHigh = new long[capacity];
+        idLow = new long[capacity];
+        sequenceNumbers = new int[capacity];
+        states = new byte[capacity];
+        urlPrefixIndexes = new int[capacity];
+        urlSuffixes = new String[capacity];
+    }
+
+    /**
+     * Copies a media list, i.e., to hand it to another thread
+     * @param mediaItems The media list, a store is copied array by array
+     * @return A store with the same ids, sequence numbers, URLs and failures
+     */
+    public static CompactPlaylistStore copyOf(List<MediaItem> mediaItems) {
+        if (mediaItems instanceof CompactPlaylistStore) {
+            return ((CompactPlaylistStore) mediaItems).copy(true);
+        }
+
+        CompactPlaylistStore store = new CompactPlaylistStore(mediaItems.size());
+        for (MediaItem mediaItem : mediaItems) {
+            int index = store.append(mediaItem.id, mediaItem.sequenceNumber);
+            store.setUrl(index, mediaItem.url);
+            if (mediaItem.failed) {
+                store.setFailed(index);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @param view The media list
+     * @return A store with the same ids and sequence numbers, nothing resolved
+     */
+    public static CompactPlaylistStore unresolvedCopyOf(PlaylistView view) {
+        if (view instanceof CompactPlaylistStore) {
+            return ((CompactPlaylistStore) view).copy(false);
+        }
+
+        CompactPlaylistStore store = new CompactPlaylistStore(view.size());
+        for (int i = 0; i < view.size(); i++) {
+            store.append(view.getId(i), view.getSequenceNumber(i));
+        }
+        return store;
+    }
+
+    /**
+     * Adds an unresolved entry at the end
+     * @param id The media item id
+     * @param sequenceNumber The media item sequence number
+     * @return Index of the new entry
+     */
+    public int append(String id, int sequenceNumber) {
+        if (size == sequenceNumbers.length) {
+            grow();
+        }
+
+        int index = size++;
+        if (!parseGuid(id, index)) {
+            if (otherIds == null) {
+                otherIds = new String[sequenceNumbers.length];
+            }
+            otherIds[index] = id;
+        }
+        sequenceNumbers[index] = sequenceNumber;
+        return index;
+    }
+
+    /**
+     * Resolves an entry
+     * @param index Position in playback order
+     * @param url The media URL, null or empty leaves it unresolved
+     */
+    public void setUrl(int index, String url) {
+        checkIndex(index);
+        if (url == null || url.isEmpty()) {
+            return;
+        }
+
+        int split = url.lastIndexOf('/') + 1;
+        String prefix = url.substring(0, split);
+        Integer prefixIndex = urlPrefixLookup.get(prefix);
+        if (prefixIndex == null) {
+            prefixIndex = urlPrefixes.size();
+            urlPrefixes.add(prefix);
+            urlPrefixLookup.put(prefix, prefixIndex);
+        }
+        urlPrefixIndexes[index] = prefixIndex;
+        urlSuffixes[index] = url.substring(split);
+        states[index] = RESOLVED;
+
+        MediaItem mediaItem = materialized.get(index);
+        if (mediaItem != null) {
+            mediaItem.url = url;
+        }
+    }
+
+    /**
+     * Gives up on an entry
+     * @param index Position in playback order
+     */
+    public void setFailed(int index) {
+        checkIndex(index);
+        states[index] = FAILED;
+
+        MediaItem mediaItem = materialized.get(index);
+        if (mediaItem != null) {
+            mediaItem.failed = true;
+        }
+    }
+
+    /**
+     * Fills in the URLs of entries another list already resolved, matching on id
+     * @param other The list to take URLs from, null for none
+     * @return How many entries got a URL
+     */
+    public int carryOverUrls(PlaylistView other) {
+        if (other == null || other.size() == 0) {
+            return 0;
+        }
+
+        // Open addressing table of the other list's resolved entries, no boxing
+        int[] table = new int[Integer.highestOneBit(other.size()) * 4];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        for (int i = 0; i < other.size(); i++) {
+            if (other.getUrl(i) == null) {
+                continue;
+            }
+            int slot = other.getIdHash(i) & mask;
+            while (table[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i;
+        }
+
+        int reused = 0;
+        for (int i = 0; i < size; i++) {
+            int slot = getIdHash(i) & mask;
+            while (table[slot] != -1) {
+                if (hasSameId(i, other, table[slot])) {
+                    setUrl(i, other.getUrl(table[slot]));
+                    reused++;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        return reused;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String getId(int index) {
+        checkIndex(index);
+        if (otherIds != null && otherIds[index] != null) {
+            return otherIds[index];
+        }
+        return formatGuid(idHigh[index], idLow[index]);
+    }
+
+    @Override
+    public int getSequenceNumber(int index) {
+        checkIndex(index);
+        return sequenceNumbers[index];
+    }
+
+    @Override
+    public String getUrl(int index) {
+        checkIndex(index);
+        MediaItem mediaItem = materialized.get(index);
+        if (mediaItem != null) {
+            return mediaItem.url == null || mediaItem.url.isEmpty() ? null : mediaItem.url;
+        }
+        if (states[index] != RESOLVED) {
+            return null;
+        }
+        return urlPrefixes.get(urlPrefixIndexes[index]) + urlSuffixes[index];
+    }
+
+    @Override
+    public boolean isFailed(int index) {
+        checkIndex(index);
+        MediaItem mediaItem = materialized.get(index);
+        return mediaItem != null ? mediaItem.failed : states[index] == FAILED;
+    }
+
+    @Override
+    public int getIdHash(int index) {
+        checkIndex(index);
+        if (otherIds != null && otherIds[index] != null) {
+            return otherIds[index].hashCode();
+        }
+        long hash = idHigh[index] * 31 + idLow[index];
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean hasSameId(int index, PlaylistView other, int otherIndex) {
+        checkIndex(index);
+        if (other instanceof CompactPlaylistStore) {
+            CompactPlaylistStore store = (CompactPlaylistStore) other;
+            store.checkIndex(otherIndex);
+            String id = otherIds != null ? otherIds[index] : null;
+            String otherId = store.otherIds != null ? store.otherIds[otherIndex] : null;
+            if (id != null || otherId != null) {
+                return id != null && id.equals(otherId);
+            }
+            return idHigh[index] == store.idHigh[otherIndex] && idLow[index] == store.idLow[otherIndex];
+        }
+        return getId(index).equals(other.getId(otherIndex));
+    }
+
+    @Override
+    public MediaItem get(int index) {
+        checkIndex(index);
+        MediaItem mediaItem = materialized.get(index);
+        if (mediaItem == null) {
+            mediaItem = new MediaItem(getId(index), sequenceNumbers[index]);
+            mediaItem.url = getUrl(index);
+            mediaItem.failed = states[index] == FAILED;
+            materialized.put(index, mediaItem);
+        }
+        return mediaItem;
+    }
+
+    @Override
+    public void retainWindow(int from, int to) {
+        Iterator<Map.Entry<Integer, MediaItem>> iterator = materialized.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, MediaItem> entry = iterator.next();
+            int index = entry.getKey();
+            if (index < from || index >= to) {
+                iterator.remove();
+                fold(index, entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public List<MediaItem> asList() {
+        return this;
+    }
+
+    /**
+     * @return How many entries exist as objects right now
+     */
+    public int getMaterializedCount() {
+        return materialized.size();
+    }
+
+    /**
+     * Takes what was set on a materialized media item back into the arrays
+     */
+    private void fold(int index, MediaItem mediaItem) {
+        if (mediaItem.url != null && !mediaItem.url.isEmpty() && !mediaItem.url.equals(getUrl(index))) {
+            setUrl(index, mediaItem.url);
+        }
+        if (mediaItem.failed) {
+            states[index] = FAILED;
+        }
+    }
+
+    /**
+     * @param withState Whether to keep URLs and failures
+     * @return A copy with its own arrays and nothing materialized
+     */
+    private CompactPlaylistStore copy(boolean withState) {
+        CompactPlaylistStore copy = new CompactPlaylistStore(size);
+        copy.size = size;
+        System.arraycopy(idHigh, 0, copy.idHigh, 0, size);
+        System.arraycopy(idLow, 0, copy.idLow, 0, size);
+        if (otherIds != null) {
+            copy.otherIds = Arrays.copyOf(otherIds, Math.max(size, 1));
+        }
+        System.arraycopy(sequenceNumbers, 0, copy.sequenceNumbers, 0, size);
+        if (!withState) {
+            return copy;
+        }
+
+        System.arraycopy(states, 0, copy.states, 0, size);
+        System.arraycopy(urlPrefixIndexes, 0, copy.urlPrefixIndexes, 0, size);
+        System.arraycopy(urlSuffixes, 0, copy.urlSuffixes, 0, size);
+        copy.urlPrefixes.addAll(urlPrefixes);
+        copy.urlPrefixLookup.putAll(urlPrefixLookup);
+        for (Map.Entry<Integer, MediaItem> entry : materialized.entrySet()) {
+            copy.fold(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    private void grow() {
+        int capacity = sequenceNumbers.length * 2;
+        idHigh = Arrays.copyOf(idHigh, capacity);
+        idLow = Arrays.copyOf(idLow, capacity);
+        if (otherIds != null) {
+            otherIds = Arrays.copyOf(otherIds, capacity);
+        }
+        sequenceNumbers = Arrays.copyOf(sequenceNumbers, capacity);
+        states = Arrays.copyOf(states, capacity);
+        urlPrefixIndexes = Arrays.copyOf(urlPrefixIndexes, capacity);
+        urlSuffixes = Arrays.copyOf(urlSuffixes, capacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+    }
+
+    /**
+     * Reads a lowercase GUID, i.e., dde6215d-14bb-4b37-bb01-68287228615a, into the id arrays
+     * @return Whether it was one, anything else has to be kept as a string to come back the same
+     */
+    private boolean parseGuid(String id, int index) {
+        if (id == null || id.length() != 36) {
+            return false;
+        }
+
+        long high = 0;
+        long low = 0;
+        int digits = 0;
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+                continue;
+            }
+
+            int value;
+            if (c >= '0' && c <= '9') {
+                value = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                value = c - 'a' + 10;
+            } else {
+                return false;
+            }
+            if (digits++ < 16) {
+                high = (high << 4) | value;
+            } else {
+                low = (low << 4) | value;
+            }
+        }
+
+        idHigh[index] = high;
+        idLow[index] = low;
+        return true;
+    }
+
+    private static String formatGuid(long high, long low) {
+        char[] chars = new char[36];
+        int position = 35;
+        for (int i = 0; i < 32; i++) {
+            if (position == 23 || position == 18 || position == 13 || position == 8) {
+                chars[position--] = '-';
+            }
+            long bits = i < 16 ? low : high;
+            chars[position--] = HEX_DIGITS[(int) (bits >>> ((i % 16) * 4)) & 0xf];
+        }
+        return new String(chars);
+    }
+}
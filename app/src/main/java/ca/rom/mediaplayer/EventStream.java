@@ -0,0 +1,232 @@
+package ca.rom.mediaplayer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Typed fan out of events to listeners, each listener says which executor it wants to be called
+ * on.  Emitting never calls a listener on the emitting thread's stack: events go into a per
+ * listener buffer that is drained in a loop on the listener's executor, so a listener emitting
+ * more events, or a long run of events, can't build up a deep call stack.
+ * @param <T> The type of event
+ */
+public class EventStream<T> {
+
+    /**
+     * Receives events from the stream
+     * @param <T> The type of event
+     */
+    public interface Listener<T> {
+        /**
+         * Called on the executor the listener was added with, in the order events were emitted
+         * @param event The event
+         */
+        void onEvent(T event);
+    }
+
+    /**
+     * Everyone listening
+     */
+    private final CopyOnWriteArrayList<Subscription<T>> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Events emitted while nobody was listening, waiting for the first listener, null if they
+     * are just dropped
+     */
+    private final ArrayDeque<T> held;
+
+    /**
+     * Whether anyone has listened yet, after that nothing is held, a listener that comes and goes
+     * doesn't want events from before it came
+     */
+    private boolean observed = false;
+
+    /**
+     * Constructor for a stream that drops events nobody is listening for
+     */
+    public EventStream() {
+        this(false);
+    }
+
+    /**
+     * Constructor
+     * @param holdUntilObserved Whether events emitted before anyone listens are kept for the
+     *                          first listener, i.e., when work starts before the UI is up
+     */
+    public EventStream(boolean holdUntilObserved) {
+        held = holdUntilObserved ? new ArrayDeque<T>() : null;
+    }
+
+    /**
+     * Adds a listener that buffers every event until it gets to them
+     * @param listener Who to tell
+     * @param executor Where to tell them, i.e., the main thread
+     */
+    public void addListener(Listener<T> listener, Executor executor) {
+        addListener(listener, executor, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds a listener with a bounded buffer, once it is full the oldest event is dropped to make
+     * room for the newest
+     * @param listener Who to tell
+     * @param executor Where to tell them, i.e., the main thread
+     * @param capacity How many events can wait for the listener
+     */
+    public void addListener(Listener<T> listener, Executor executor, int capacity) {
+        Subscription<T> subscription = new Subscription<>(listener, executor, capacity);
+        if (held == null) {
+            subscriptions.add(subscription);
+            return;
+        }
+
+        // Held events go first, emit waits so nothing newer gets in ahead of them
+        synchronized (held) {
+            subscriptions.add(subscription);
+            observed = true;
+            T event;
+            while ((event = held.poll()) != null) {
+                subscription.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Stops telling the listener about events, anything still buffered for it is dropped
+     * @param listener Who to stop telling
+     */
+    public void removeListener(Listener<T> listener) {
+        for (Subscription<T> subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscription.cancel();
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Stops telling every listener, and forgets anything held for the first one, i.e., when the
+     * stream's owner is done with
+     */
+    public void removeAllListeners() {
+        for (Subscription<T> subscription : subscriptions) {
+            subscription.cancel();
+        }
+        subscriptions.clear();
+        if (held != null) {
+            synchronized (held) {
+                held.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends the event to every listener, safe to call from any thread
+     * @param event The event
+     */
+    public void emit(T event) {
+        if (held == null) {
+            offer(event);
+            return;
+        }
+
+        synchronized (held) {
+            if (!observed) {
+                held.add(event);
+            } else {
+                offer(event);
+            }
+        }
+    }
+
+    /**
+     * @param event Goes into every listener's buffer
+     */
+    private void offer(T event) {
+        for (Subscription<T> subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * @param listener A listener added to this stream
+     * @return How many events were dropped because the listener's buffer was full
+     */
+    public int getDroppedCount(Listener<T> listener) {
+        int dropped = 0;
+        for (Subscription<T> subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                dropped += subscription.getDroppedCount();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * One listener's buffer and the loop that drains it
+     */
+    private static class Subscription<T> implements Runnable {
+        final Listener<T> listener;
+        private final Executor executor;
+        private final int capacity;
+        private final ArrayDeque<T> buffer = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private boolean cancelled = false;
+        private int dropped = 0;
+
+        Subscription(Listener<T> listener, Executor executor, int capacity) {
+            this.listener = listener;
+            this.executor = executor;
+            this.capacity = capacity;
+        }
+
+        void offer(T event) {
+            synchronized (buffer) {
+                if (cancelled) {
+                    return;
+                }
+                if (buffer.size() >= capacity) {
+                    buffer.poll();
+                    dropped++;
+                }
+                buffer.add(event);
+
+                // A drain is already on its way, it will pick this up
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            executor.execute(this);
+        }
+
+        void cancel() {
+            synchronized (buffer) {
+                cancelled = true;
+                buffer.clear();
+            }
+        }
+
+        int getDroppedCount() {
+            synchronized (buffer) {
+                return dropped;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                T event;
+                synchronized (buffer) {
+                    event = buffer.poll();
+                    if (event == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                listener.onEvent(event);
+            }
+        }
+    }
+}
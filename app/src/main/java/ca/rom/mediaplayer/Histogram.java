@@ -0,0 +1,107 @@
+package ca.rom.mediaplayer;
+
+import java.util.Arrays;
+
+/**
+ * A cheap histogram of non negative values, i.e., milliseconds.  Values go into power of two
+ * buckets so recording is a few array operations with no allocation, and percentiles are only
+ * as precise as the bucket they land in.  Safe to record from any thread.
+ */
+public class Histogram {
+
+    /**
+     * Bucket 0 holds 0, bucket i holds values from 2^(i-1) up to 2^i - 1
+     */
+    private static final int BUCKET_COUNT = 64;
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+
+    private long count = 0;
+
+    private long sum = 0;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max = 0;
+
+    /**
+     * Records a value, negative values are recorded as 0
+     * @param value The value, i.e., a duration in milliseconds
+     */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[BUCKET_COUNT - Long.numberOfLeadingZeros(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return The smallest value recorded, 0 if there are none
+     */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile Which percentile, from 0 to 100
+     * @return The top of the bucket the percentile falls in, never more than the largest value
+     * recorded, 0 if there are none
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                long upper = i == 0 ? 0 : (1L << i) - 1;
+                return Math.max(getMin(), Math.min(max, upper));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public synchronized void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * @return A one line summary, i.e., for the log
+     */
+    @Override
+    public synchronized String toString() {
+        return "count=" + count +
+                " mean=" + (count == 0 ? 0 : sum / count) +
+                " min=" + getMin() +
+                " p50=" + getPercentile(50) +
+                " p90=" + getPercentile(90) +
+                " p99=" + getPercentile(99) +
+                " max=" + max;
+    }
+}
@@ -1,58 +1,64 @@
 package ca.rom.mediaplayer;
 
-import android.net.Uri;
-import android.os.Handler;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
-import android.text.TextUtils;
 import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 
-import com.google.android.exoplayer2.C;
-import com.google.android.exoplayer2.ExoPlaybackException;
-import com.google.android.exoplayer2.ExoPlayerFactory;
-import com.google.android.exoplayer2.PlaybackParameters;
-import com.google.android.exoplayer2.Player;
-import com.google.android.exoplayer2.SimpleExoPlayer;
-import com.google.android.exoplayer2.Timeline;
-import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
-import com.google.android.exoplayer2.extractor.ExtractorsFactory;
-import com.google.android.exoplayer2.source.ExtractorMediaSource;
-import com.google.android.exoplayer2.source.MediaSource;
-import com.google.android.exoplayer2.source.TrackGroupArray;
-import com.google.android.exoplayer2.source.dash.DashMediaSource;
-import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
-import com.google.android.exoplayer2.source.hls.HlsMediaSource;
-import com.google.android.exoplayer2.source.smoothstreaming.DefaultSsChunkSource;
-import com.google.android.exoplayer2.source.smoothstreaming.SsMediaSource;
-import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
-import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
-import com.google.android.exoplayer2.trackselection.TrackSelection;
-import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
-import com.google.android.exoplayer2.trackselection.TrackSelector;
-import com.google.android.exoplayer2.ui.SimpleExoPlayerView;
-import com.google.android.exoplayer2.upstream.BandwidthMeter;
-import com.google.android.exoplayer2.upstream.DataSource;
-import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
-import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
-import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.ui.AspectRatioFrameLayout;
 
-import java.util.Observable;
-import java.util.Observer;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-public class MainActivity extends AppCompatActivity implements Observer, Player.EventListener {
+/**
+ * Shows what the playback service is playing.  The service owns the player and the playlist, we
+ * only hand it our surface while we have one, so coming and going doesn't interrupt playback.
+ */
+public class MainActivity extends AppCompatActivity implements SurfaceHolder.Callback,
+        EventStream.Listener<Float> {
     private static final String TAG = "MediaPlayerMainActivity";
 
-    private Handler mainHandler;
-    private DataSource.Factory mediaDataSourceFactory;
+    /**
+     * The service, null until we are bound to it
+     */
+    private PlaybackService playbackService;
 
-    private SimpleExoPlayer player;
+    /**
+     * Our surface, null while there isn't one
+     */
+    private Surface surface;
 
-    private ConcurrentLinkedQueue<MediaSource> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * Hands the service our surface once we have both
+     */
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            Log.d(TAG, "Bound to playback service");
+            playbackService = ((PlaybackService.LocalBinder) binder).getService();
+            playbackService.addVideoListener(MainActivity.this, MainThreadExecutor.getInstance());
+
+            // Already playing, i.e., we were recreated
+            float videoAspectRatio = playbackService.getVideoAspectRatio();
+            if (videoAspectRatio > 0) {
+                onEvent(videoAspectRatio);
+            }
+            if (surface != null) {
+                playbackService.setSurface(surface);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            playbackService = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -69,191 +75,65 @@ public class MainActivity extends AppCompatActivity implements Observer, Player.
 
         // Set content view
         setContentView(R.layout.activity_main);
+        StartupOrchestrator.getInstance(this).mark(StartupOrchestrator.PHASE_LAYOUT_INFLATED);
 
-        // Create new main handler and mediadatasourcefactory
-        mainHandler = new Handler();
-        mediaDataSourceFactory = buildDataSourceFactory();
-
-        // 1. Create a default TrackSelector
-        BandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
-        TrackSelection.Factory videoTrackSelectionFactory =
-                new AdaptiveTrackSelection.Factory(bandwidthMeter);
-        TrackSelector trackSelector =
-                new DefaultTrackSelector(videoTrackSelectionFactory);
-
-        // 2. Create the player
-        player = ExoPlayerFactory.newSimpleInstance(getApplicationContext(), trackSelector);
-        player.addListener(this);
-        player.setPlayWhenReady(true);
-        player.setRepeatMode(Player.REPEAT_MODE_OFF);
-
-        // Bind the player to the view.
-        SimpleExoPlayerView simpleExoPlayerView = findViewById(R.id.player_view);
-        simpleExoPlayerView.setPlayer(player);
-
-        // Hide controls as it transitions to new media
-        simpleExoPlayerView.setControllerAutoShow(false);
-
-        // Add ourselves as a listener and kick off service
-        Log.d(TAG, "Registering observer on MediaDataService");
-        MediaDataService mediaDataService = MediaDataService.getInstance(getApplicationContext());
-        mediaDataService.addObserver(this);
-        mediaDataService.refreshMediaList();
-    }
-
-    /**
-     * Builds various media sources based on URI extension, in my experience its always HLS from
-     * the API
-     * @param uri
-     * @param overrideExtension
-     * @return
-     */
-    private MediaSource buildMediaSource(Uri uri, String overrideExtension) {
-        int type = TextUtils.isEmpty(overrideExtension) ? Util.inferContentType(uri)
-                : Util.inferContentType("." + overrideExtension);
-        switch (type) {
-            case C.TYPE_SS:
-                return new SsMediaSource(uri, buildDataSourceFactory(),
-                        new DefaultSsChunkSource.Factory(mediaDataSourceFactory), mainHandler, null);
-            case C.TYPE_DASH:
-                return new DashMediaSource(uri, buildDataSourceFactory(),
-                        new DefaultDashChunkSource.Factory(mediaDataSourceFactory), mainHandler, null);
-            case C.TYPE_HLS:
-                return new HlsMediaSource(uri, mediaDataSourceFactory, mainHandler, null);
-            case C.TYPE_OTHER:
-                return new ExtractorMediaSource(uri, mediaDataSourceFactory, new DefaultExtractorsFactory(),
-                        mainHandler, null);
-            default: {
-                throw new IllegalStateException("Unsupported type: " + type);
-            }
-        }
-    }
+        // The player draws on our surface while we have it
+        SurfaceView surfaceView = findViewById(R.id.surface_view);
+        surfaceView.getHolder().addCallback(this);
 
-    /**
-     * Returns a new DataSource factory.
-     *
-     * @return A new DataSource factory.
-     */
-    private DataSource.Factory buildDataSourceFactory() {
-        return new DefaultHttpDataSourceFactory("ROMMediaPlayer");
+        // Started as well as bound so it outlives us when we are recreated
+        Intent intent = new Intent(this, PlaybackService.class);
+        startService(intent);
+        bindService(intent, connection, BIND_AUTO_CREATE);
     }
 
-    /**
-     * The media service will call us when it has a new video url ready
-     * @param observable MediaDataService that triggered the update
-     * @param o MediaItem that is next to play
-     */
     @Override
-    public void update(Observable observable, Object o) {
-        Log.d(TAG, "Update received from MediaDataService.");
-
-        if (observable instanceof MediaDataService) {
-            MediaItem nextMediaItem = (MediaItem) o;
-            try {
-                addMediaToQueue(nextMediaItem);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-
-            return;
+    protected void onDestroy() {
+        super.onDestroy();
+        if (playbackService != null) {
+            playbackService.removeVideoListener(this);
         }
-        Log.e(TAG, "Unknown observable type: " + observable.getClass());
-    }
+        unbindService(connection);
+        playbackService = null;
 
-    /**
-     * Queues next video to our media player
-     * @param nextMediaItem The MediaItem to convert to mediasource and queue
-     */
-    public void addMediaToQueue(MediaItem nextMediaItem) throws InterruptedException {
-        Log.d(TAG, "Adding media list to player");
-
-        // Create the media
-        MediaSource mediaSource = this.buildMediaSource(Uri.parse(nextMediaItem.url), null);
-
-        // Queue it, we could have many threads in here so the queue is synchronized
-        queue.add(mediaSource);
-
-        // If first one kick off player
-        play();
-    }
-
-    /**
-     * Help determine if we're idle, ready, or ended to play the next video
-     * @throws InterruptedException Throws it, but not sure in which condition
-     */
-    public void play() throws InterruptedException {
-
-        int state = player.getPlaybackState();
-        Log.d(TAG, "Playing if ready, current state: " + state);
-
-        // Hide loading text
-        findViewById(R.id.loadingText).setVisibility(View.GONE);
-        findViewById(R.id.player_view).setVisibility(View.VISIBLE);
-
-        if (state == Player.STATE_IDLE ||
-                state == Player.STATE_ENDED) {
-
-            // Take next off queue
-            if (queue.isEmpty()) {
-                // Maybe we should get more!
-                MediaDataService.getInstance(this).refreshMediaList();
-            }
-
-            MediaSource mediaSource = queue.remove();
-
-            // Give the player the next media source
-            Log.d(TAG, "Playing: " + mediaSource.toString());
-            player.prepare(mediaSource);
+        // Leaving for good rather than being recreated, stop playing
+        if (isFinishing()) {
+            stopService(new Intent(this, PlaybackService.class));
         }
     }
 
     @Override
-    public void onTimelineChanged(Timeline timeline, Object manifest) {
-
-    }
-
-    @Override
-    public void onTracksChanged(TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
-
-    }
-
-    @Override
-    public void onLoadingChanged(boolean isLoading) {
-
-    }
-
-    @Override
-    public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
-        Log.d(TAG, "Playback changed, current state: " + playbackState);
-
-        if (player.getPlaybackState() == Player.STATE_ENDED) {
-            Log.d(TAG, "Video finished");
-            try {
-                play();
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    public void surfaceCreated(SurfaceHolder holder) {
+        surface = holder.getSurface();
+        if (playbackService != null) {
+            playbackService.setSurface(surface);
         }
     }
 
     @Override
-    public void onRepeatModeChanged(int repeatMode) {
-
-    }
-
-    @Override
-    public void onPlayerError(ExoPlaybackException error) {
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
 
     }
 
     @Override
-    public void onPositionDiscontinuity() {
-
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        if (playbackService != null && surface != null) {
+            playbackService.clearSurface(surface);
+        }
+        surface = null;
     }
 
+    /**
+     * The service told us, on the main thread, the shape of the video, so it is playing
+     * @param videoAspectRatio Width over height of the video
+     */
     @Override
-    public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
+    public void onEvent(Float videoAspectRatio) {
+        Log.d(TAG, "Video playing, aspect ratio " + videoAspectRatio);
 
+        // Hide loading text
+        findViewById(R.id.loadingText).setVisibility(View.GONE);
+        AspectRatioFrameLayout playerView = findViewById(R.id.player_view);
+        playerView.setAspectRatio(videoAspectRatio);
     }
 }
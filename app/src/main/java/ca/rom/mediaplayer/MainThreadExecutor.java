@@ -0,0 +1,46 @@
+package ca.rom.mediaplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Runs things on the main looper, hand it to an EventStream to have listeners called on the UI
+ * thread, or to a MediaDataService to run it there
+ */
+public class MainThreadExecutor implements ServiceExecutor {
+    /**
+     * Our singleton instance
+     */
+    private static MainThreadExecutor mInstance;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private MainThreadExecutor() {
+    }
+
+    /**
+     * Singleton accessor
+     * @return The main thread executor
+     */
+    public static synchronized MainThreadExecutor getInstance() {
+        if (mInstance == null) {
+            mInstance = new MainThreadExecutor();
+        }
+        return mInstance;
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    @Override
+    public void executeDelayed(Runnable runnable, long delayMs) {
+        handler.postDelayed(runnable, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        handler.removeCallbacks(runnable);
+    }
+}
@@ -0,0 +1,65 @@
+package ca.rom.mediaplayer;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import java.io.File;
+
+/**
+ * The on disk, size bounded, least recently used cache every media download goes through.  Only
+ * one SimpleCache may own a directory so everyone has to share this one.
+ */
+public class MediaCache {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "MediaCache";
+
+    /**
+     * Directory under the app's files directory, not the cache directory, so the system doesn't
+     * throw our media away when storage gets tight
+     */
+    private static final String CACHE_DIR_NAME = "media";
+
+    /**
+     * Our singleton instance
+     */
+    private static Cache mCache;
+
+    private MediaCache() {
+    }
+
+    /**
+     * Singleton accessor
+     * @param context Any context, we only hang on to the files directory
+     * @return The shared media cache
+     */
+    public static synchronized Cache getInstance(Context context) {
+        if (mCache == null) {
+            long maxBytes = context.getResources().getInteger(R.integer.media_cache_size_mb) * 1024L * 1024L;
+            File dir = new File(context.getApplicationContext().getFilesDir(), CACHE_DIR_NAME);
+            Log.d(TAG, "Creating media cache of " + maxBytes + " bytes in " + dir);
+            mCache = new SimpleCache(dir, new LeastRecentlyUsedCacheEvictor(maxBytes));
+        }
+        return mCache;
+    }
+
+    /**
+     * Wraps a data source factory so reads are served from the cache when they can be and
+     * written to it when they can't.  If the cache has trouble we just go to the network.
+     * @param context Any context
+     * @param upstreamFactory Where to get data the cache doesn't have
+     * @return A caching data source factory
+     */
+    public static DataSource.Factory buildDataSourceFactory(Context context, DataSource.Factory upstreamFactory) {
+        return new CacheDataSourceFactory(getInstance(context), upstreamFactory,
+                CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+    }
+}
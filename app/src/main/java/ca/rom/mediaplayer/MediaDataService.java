@@ -1,266 +1,1657 @@
 package ca.rom.mediaplayer;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.util.JsonReader;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.text.TextUtils;
 import android.util.Log;
 
-import com.android.volley.Cache;
-import com.android.volley.Network;
 import com.android.volley.Request;
-import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.BasicNetwork;
-import com.android.volley.toolbox.DiskBasedCache;
-import com.android.volley.toolbox.HurlStack;
-import com.android.volley.toolbox.JsonObjectRequest;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import java.util.ArrayList;
-import java.util.Observable;
 
+/**
+ * Access to the media lists, add your listener and it will send you a stream of media items
+ * in order they are supposed to be played back in, on the executor of your choosing
+ *
+ * The app uses the one from getInstance, wired to the playback thread, Volley and our resources.
+ * Everything it needs is handed to the constructor though, so several can run side by side, i.e.,
+ * one per screen, each with its own media list, cursor and snapshot, and one can run on the JVM
+ * with a fake transport and clock.  All of its work happens on its executor so it needs no
+ * locking; call it from there.
+ */
+public class MediaDataService {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "MediaDataService";
+
+    /**
+     * Settings for one service, fromResources gives the app's defaults
+     */
+    public static class Config {
+        /**
+         * Where we get the media list from, and the base for every media item URL
+         */
+        public String mediaListUrl;
+
+        /**
+         * Where the server pushes media list changes as Server-Sent Events, null to only poll
+         */
+        public String eventsUrl;
+
+        /**
+         * How often we check the media list for changes while playing
+         */
+        public long pollIntervalMs = 300 * 1000;
+
+        /**
+         * How many media items to resolve ahead of the next one to be played
+         */
+        public int resolveAhead = 3;
+
+        /**
+         * How many media items to look up in one request when the server supports it
+         */
+        public int batchSize = 10;
+
+        /**
+         * How many media items go out before listeners ask for more with requestMediaItems,
+         * unlimited by default
+         */
+        public int emitAhead = UNLIMITED_DEMAND;
+
+        /**
+         * How long a media item has to resolve before it is skipped
+         */
+        public long itemDeadlineMs = 15 * 1000;
+
+        /**
+         * How many requests each priority lane can have in flight
+         */
+        public int nextLaneLimit = 2;
+
+        public int lookaheadLaneLimit = 1;
+
+        public int backgroundLaneLimit = 1;
+
+        /**
+         * How long a media URL that failed to play is kept out of the playlist
+         */
+        public long quarantineMs = 10 * 60 * 1000;
+
+        /**
+         * Where the last resolved media list is kept between runs, each service needs its own
+         */
+        public File snapshotFile;
+
+        /**
+         * Where the transport keeps its cache, each service needs its own
+         */
+        public File cacheDir;
+
+        /**
+         * @param context Any context
+         * @return The settings from our resources for the app's own media list
+         */
+        public static Config fromResources(Context context) {
+            return fromResources(context, context.getString(R.string.media_list_url));
+        }
+
+        /**
+         * @param context Any context
+         * @param mediaListUrl The media list the service plays
+         * @return The settings from our resources, keeping files in the app's usual places under
+         * names of the media list's own so services for other lists never share them
+         */
+        public static Config fromResources(Context context, String mediaListUrl) {
+            Config config = new Config();
+            config.mediaListUrl = mediaListUrl;
+
+            // Only the app's own media list has its changes pushed
+            if (mediaListUrl.equals(context.getString(R.string.media_list_url))) {
+                config.eventsUrl = context.getString(R.string.media_list_events_url);
+            }
+            config.pollIntervalMs = context.getResources().getInteger(R.integer.media_list_poll_seconds) * 1000L;
+            config.resolveAhead = context.getResources().getInteger(R.integer.media_resolve_ahead);
+            config.batchSize = context.getResources().getInteger(R.integer.media_batch_size);
+            config.emitAhead = 1 + context.getResources().getInteger(R.integer.media_prepare_ahead);
+            config.itemDeadlineMs = context.getResources().getInteger(R.integer.media_item_deadline_seconds) * 1000L;
+            config.nextLaneLimit = context.getResources().getInteger(R.integer.request_lane_next_limit);
+            config.lookaheadLaneLimit = context.getResources().getInteger(R.integer.request_lane_lookahead_limit);
+            config.backgroundLaneLimit = context.getResources().getInteger(R.integer.request_lane_background_limit);
+            config.quarantineMs = context.getResources().getInteger(R.integer.media_url_quarantine_seconds) * 1000L;
+            String fileKey = fileKey(mediaListUrl);
+            config.snapshotFile = new File(context.getFilesDir(), String.format(SNAPSHOT_FILE_NAME, fileKey));
+            config.cacheDir = new File(context.getCacheDir(), String.format(CACHE_DIR_NAME, fileKey));
+            return config;
+        }
+
+        /**
+         * @return How many requests can be in flight across every lane
+         */
+        public int getMaxInFlight() {
+            return nextLaneLimit + lookaheadLaneLimit + backgroundLaneLimit;
+        }
+    }
+
+    /**
+     * Retry delay after the first failure, doubled after every failure after that
+     */
+    private static final long RETRY_BASE_DELAY_MS = 500;
+
+    /**
+     * Retry delays never grow past this
+     */
+    private static final long RETRY_MAX_DELAY_MS = 60 * 1000;
+
+    /**
+     * How many times we try a single media item before skipping it
+     */
+    private static final int ITEM_MAX_ATTEMPTS = 5;
+
+    /**
+     * How many failures in a row before we stop talking to the server for a while
+     */
+    private static final int BREAKER_THRESHOLD = 5;
+
+    /**
+     * How long we stop talking to the server for once the breaker opens
+     */
+    private static final long BREAKER_COOLDOWN_MS = 30 * 1000;
+
+    /**
+     * File under the app's files directory holding the last resolved media list, for the media
+     * list's file key
+     */
+    private static final String SNAPSHOT_FILE_NAME = "playlist-%s.snapshot";
+
+    /**
+     * Directory under the app's cache directory the transport caches in, for the media list's
+     * file key
+     */
+    private static final String CACHE_DIR_NAME = "media-data-%s";
+
+    /**
+     * Listeners take every media item as soon as it is ready
+     */
+    public static final int UNLIMITED_DEMAND = Integer.MAX_VALUE;
+
+    /**
+     * How many media item lookups we remember validators for
+     */
+    private static final int ITEM_VALIDATOR_CACHE_SIZE = 1000;
+
+    /**
+     * Our singleton instance
+     */
+    private static MediaDataService mInstance;
+
+    /**
+     * Gets our requests to the server
+     */
+    private final MediaTransport transport;
+
+    /**
+     * Where all of our work happens, responses are delivered and retries wait out their backoff
+     */
+    private final ServiceExecutor executor;
+
+    /**
+     * Where the time comes from
+     */
+    private final Clock clock;
+
+    /**
+     * Decides which of our requests go out to the queue when, so the next item to play is never
+     * stuck behind lookahead lookups or a background refresh
+     */
+    private final RequestScheduler<MediaJsonRequest<?>> scheduler;
+
+    /**
+     * Our list of mediaitems we build from the responses of API calls, kept compact with only the
+     * items around the cursor materialized as objects
+     */
+    private PlaylistView mediaItemList;
+
+    /**
+     * Which media items are being resolved and which go out next, used to serialize (aka keep
+     * in order) the data.  Only a few items past the cursor are resolved at once so we don't
+     * compete with the video for bandwidth.
+     */
+    private final ResolveWindow resolveWindow;
+
+    /**
+     * Resolves media items for the window with requests for the current media list
+     */
+    private final ResolveWindow.Resolver resolver = new ResolveWindow.Resolver() {
+        @Override
+        public void resolve(MediaItem mediaItem) {
+            fillMediaItem(mediaItem, generation);
+        }
+
+        @Override
+        public void resolveBatch(List<MediaItem> mediaItems) {
+            fillMediaItemBatch(mediaItems, generation, 1);
+        }
+    };
+
+    /**
+     * Where we get the media list from, and the base for every media item URL
+     */
+    private String mediaListUrl;
+
+    /**
+     * Where we keep the last resolved media list between runs
+     */
+    private final PlaylistSnapshotStore snapshotStore;
+
+    /**
+     * Writes snapshots off the main thread
+     */
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Whether this run has already looked for a snapshot to start from
+     */
+    private boolean snapshotChecked = false;
+
+    /**
+     * Whether the media list we are working from is the snapshot, the server hasn't confirmed
+     * it yet
+     */
+    private boolean fromSnapshot = false;
+
+    /**
+     * ETag of the media list we are working from
+     */
+    private String mediaListEtag;
+
+    /**
+     * Last-Modified of the media list we are working from
+     */
+    private String mediaListLastModified;
+
+    /**
+     * Validators for media item lookups, so asking again for one we've seen is cheap
+     */
+    private final ValidatorCache itemValidators = new ValidatorCache(ITEM_VALIDATOR_CACHE_SIZE);
+
+    /**
+     * Media item lookups in flight by URL, an id that is in the list more than once is only
+     * asked for once at a time
+     */
+    private final SingleFlight<String, String> itemFlights = new SingleFlight<>();
+
+    /**
+     * Wall clock expiry of the media list we are working from
+     */
+    private long mediaListExpiresAt;
+
+    /**
+     * How often we check the media list for changes while playing
+     */
+    private long pollIntervalMs;
+
+    /**
+     * Checks the media list for changes
+     */
+    private final Runnable pollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Polling media list for changes");
+            updateMediaList();
+        }
+    };
+
+    /**
+     * Tells us as soon as the media list changes, null if we only poll
+     */
+    private PlaylistEventSource eventSource;
+
+    /**
+     * Whether the event stream is open, there is no need to poll while it is
+     */
+    private boolean eventStreamOpen = false;
+
+    /**
+     * Whether the event stream has been open before, so opening it again means we may have
+     * missed a change
+     */
+    private boolean eventStreamWasOpen = false;
+
+    /**
+     * Acts on pushed media list changes, called on the executor
+     */
+    private final PlaylistEventSource.Listener eventListener = new PlaylistEventSource.Listener() {
+        @Override
+        public void onConnected(boolean resumed) {
+            eventStreamOpen = true;
+            executor.cancel(pollRunnable);
+
+            // Anything that changed while the stream was down wasn't pushed to us, unless the
+            // server is replaying it from our last event id
+            if (eventStreamWasOpen && !resumed && mediaItemList != null) {
+                Log.d(TAG, "Event stream back, catching up on media list changes");
+                updateMediaList();
+            }
+            eventStreamWasOpen = true;
+        }
+
+        @Override
+        public void onEvent(String event, String data) {
+            Log.d(TAG, "Media list changed: " + event + " " + data);
+
+            // Replayed changes and a server that couldn't replay them both mean an update.
+            // Nothing to update yet, the first refresh gets the latest anyway
+            if (mediaItemList != null) {
+                updateMediaList();
+            }
+        }
+
+        @Override
+        public void onDisconnected() {
+            // Poll until the stream is back
+            eventStreamOpen = false;
+            if (mediaItemList != null) {
+                schedulePoll();
+            }
+        }
+    };
+
+    /**
+     * Whether everything in the current media list has been dealt with
+     */
+    private boolean listComplete = false;
+
+    /**
+     * Reads media list and item responses into media items
+     */
+    private final MediaListParser mediaListParser = new MediaListParser();
+
+    /**
+     * Parses media list responses on the network thread
+     */
+    private final MediaJsonRequest.Parser<MediaListParser.MediaList> mediaListResponseParser =
+            new MediaJsonRequest.Parser<MediaListParser.MediaList>() {
+                @Override
+                public MediaListParser.MediaList parse(Reader reader) throws IOException {
+                    return mediaListParser.parseMediaList(reader);
+                }
+            };
+
+    /**
+     * Parses single and batched media item responses on the network thread
+     */
+    private final MediaJsonRequest.Parser<Map<String, String>> mediaItemResponseParser =
+            new MediaJsonRequest.Parser<Map<String, String>>() {
+                @Override
+                public Map<String, String> parse(Reader reader) throws IOException {
+                    return mediaListParser.parseMediaItemUrls(reader);
+                }
+            };
+
+    /**
+     * Where ready media items go out to listeners, held until there is one since the list is
+     * fetched before the activity is up
+     */
+    private final EventStream<MediaItem> mediaItemStream = new EventStream<>(true);
+
+    /**
+     * Checks the window again once the media item we are waiting on is out of time
+     */
+    private final Runnable deadlineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Media item deadline passed at " + resolveWindow.getCursor());
+            onMediaItemFilled();
+            resolveWindow.resolveAhead(resolver);
+        }
+    };
+
+    /**
+     * Whether we are playing the playlist snapshot because the server can't be reached
+     */
+    private boolean offline = false;
+
+    /**
+     * Where changes to offline go out to listeners
+     */
+    private final EventStream<Boolean> offlineStream = new EventStream<>();
+
+    /**
+     * Where our timings go
+     */
+    private final PlaybackMetrics metrics;
+
+    /**
+     * When the current refresh started, until its first media item goes out
+     */
+    private long refreshStartedAt = -1;
+
+    /**
+     * How many more media items listeners have room for, the window stops letting items out at
+     * 0 so the rest of the list isn't resolved or built into objects before playback gets near it
+     */
+    private int demand;
+
+    /**
+     * Where the connectivity receiver is registered, null if it isn't
+     */
+    private Context receiverContext;
+
+    /**
+     * Tries the server again when the network is back, null if not registered
+     */
+    private BroadcastReceiver connectivityReceiver;
+
+    /**
+     * Whether release was called, nothing starts again after that
+     */
+    private boolean released = false;
+
+    /**
+     * Bumped whenever the media list is replaced or started over, so media item responses for an
+     * old one are ignored
+     */
+    private int generation = 0;
+
+    /**
+     * Bumped on every media list fetch so responses to an older one are ignored.  Media item
+     * lookups carry on while the list is out, only replacing the list stops them.
+     */
+    private int listGeneration = 0;
+
+    /**
+     * The media list fetch still out, -1 once the list is back
+     */
+    private int listFetchGeneration = -1;
+
+    /**
+     * Whether the media list fetch still out starts listeners over from the top
+     */
+    private boolean listFetchFromTop = false;
+
+    /**
+     * Whether an update was asked for while a media list fetch was out, the list may have
+     * changed since that one left so another goes out once it is back
+     */
+    private boolean updatePending = false;
+
+    /**
+     * Decides when to retry the media list
+     */
+    private final BackoffPolicy listBackoffPolicy;
+
+    /**
+     * Decides when to retry, or give up on, a media item
+     */
+    private final BackoffPolicy itemBackoffPolicy;
+
+    /**
+     * Media URLs that failed to play, not sent to listeners again for a while
+     */
+    private final UrlQuarantine urlQuarantine;
+
+    /**
+     * Constructor, nothing is fetched until refreshMediaList
+     * @param config Where to get the media list from and how hard to go at it
+     * @param transport Gets our requests to the server, delivering on the executor
+     * @param executor Where all of our work happens, a serial one
+     * @param clock Where the time comes from
+     * @param metrics Where our timings go
+     */
+    public MediaDataService(Config config, MediaTransport transport, ServiceExecutor executor,
+                            Clock clock, PlaybackMetrics metrics) {
+        this.transport = transport;
+        this.executor = executor;
+        this.clock = clock;
+        this.metrics = metrics;
+        listBackoffPolicy = new BackoffPolicy(clock, new Random(),
+                RETRY_BASE_DELAY_MS, RETRY_MAX_DELAY_MS, Integer.MAX_VALUE,
+                BREAKER_THRESHOLD, BREAKER_COOLDOWN_MS);
+        itemBackoffPolicy = new BackoffPolicy(clock, new Random(),
+                RETRY_BASE_DELAY_MS, RETRY_MAX_DELAY_MS, ITEM_MAX_ATTEMPTS,
+                BREAKER_THRESHOLD, BREAKER_COOLDOWN_MS);
+        scheduler = new RequestScheduler<>(new RequestScheduler.Dispatcher<MediaJsonRequest<?>>() {
+            @Override
+            public void dispatch(MediaJsonRequest<?> request, RequestScheduler.Lane lane) {
+                request.setPriority(lane == RequestScheduler.Lane.NEXT ? Request.Priority.IMMEDIATE :
+                        lane == RequestScheduler.Lane.LOOKAHEAD ? Request.Priority.HIGH : Request.Priority.LOW);
+                MediaDataService.this.transport.send(request);
+            }
+
+            @Override
+            public void cancel(MediaJsonRequest<?> request) {
+                request.cancel();
+            }
+        }, config.nextLaneLimit, config.lookaheadLaneLimit, config.backgroundLaneLimit);
+        resolveWindow = new ResolveWindow(config.resolveAhead, config.batchSize, clock, config.itemDeadlineMs);
+        demand = config.emitAhead;
+        mediaListUrl = config.mediaListUrl;
+        pollIntervalMs = config.pollIntervalMs;
+        snapshotStore = new PlaylistSnapshotStore(config.snapshotFile);
+        urlQuarantine = new UrlQuarantine(clock, config.quarantineMs);
+
+        // Make room in the request's lane
+        transport.setListener(new MediaTransport.Listener() {
+            @Override
+            public void onRequestFinished(MediaJsonRequest<?> request) {
+                scheduler.onFinished(request);
+            }
+        });
+    }
+
+    /**
+     * Builds a service for the app: Volley over the shared HTTP client, working on the playback
+     * thread, and trying the server again as soon as the network is back
+     * @param context Any context
+     * @param config Where to get the media list from, i.e., Config.fromResources
+     * @return A new service
+     */
+    public static MediaDataService create(Context context, Config config) {
+        final Context appContext = context.getApplicationContext();
+        final PlaybackThreadExecutor executor = PlaybackThreadExecutor.getInstance();
+        MediaTransport transport = new VolleyTransport(SharedHttpClient.getInstance(appContext),
+                config.cacheDir, config.getMaxInFlight(), executor);
+        final MediaDataService service = new MediaDataService(config, transport, executor, Clock.SYSTEM,
+                PlaybackMetrics.getInstance(appContext));
+
+        // Don't wait out the backoff once the network is back, receivers run on the main thread
+        service.receiverContext = appContext;
+        service.connectivityReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                SharedHttpClient.onNetworkChanged();
+
+                ConnectivityManager connectivityManager = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+                NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+                final boolean connected = networkInfo != null && networkInfo.isConnected();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        service.onConnectivityChanged(connected);
+                    }
+                });
+            }
+        };
+        appContext.registerReceiver(service.connectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        // Hear about media list changes as they happen
+        if (!TextUtils.isEmpty(config.eventsUrl)) {
+            service.setEventSource(new PlaylistEventSource(SharedHttpClient.getInstance(appContext),
+                    config.eventsUrl, new BackoffPolicy(Clock.SYSTEM, new Random(), RETRY_BASE_DELAY_MS,
+                    RETRY_MAX_DELAY_MS, Integer.MAX_VALUE, BREAKER_THRESHOLD, BREAKER_COOLDOWN_MS), executor));
+        }
+        return service;
+    }
+
+    /**
+     * Singleton accessor for the app's own service
+     * @param context Any context
+     * @return The service configured from our resources
+     */
+    public static synchronized MediaDataService getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = create(context, Config.fromResources(context));
+        }
+        return mInstance;
+    }
+
+    /**
+     * Stops everything the service has going and lets go of its threads, i.e., when the screen
+     * it feeds goes away.  Listeners are dropped and hear nothing more, and the service can't be
+     * started again.  Call it on the executor.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        Log.d(TAG, "Releasing");
+        released = true;
+
+        // Anything still out or waiting to go again is for nobody now
+        ++generation;
+        ++listGeneration;
+        executor.cancel(pollRunnable);
+        executor.cancel(deadlineRunnable);
+        scheduler.cancel(RequestScheduler.Lane.values());
+        itemFlights.clear();
+        setEventSource(null);
+        if (connectivityReceiver != null) {
+            receiverContext.unregisterReceiver(connectivityReceiver);
+            connectivityReceiver = null;
+            receiverContext = null;
+        }
+        transport.release();
+
+        // A snapshot being written still gets finished
+        snapshotExecutor.shutdown();
+        mediaItemStream.removeAllListeners();
+        offlineStream.removeAllListeners();
+
+        synchronized (MediaDataService.class) {
+            if (mInstance == this) {
+                mInstance = null;
+            }
+        }
+    }
+
+    /**
+     * Adds a listener for media items, they arrive in playback order
+     * @param listener Who to tell
+     * @param executor Where to tell them, i.e., MainThreadExecutor for anything touching the UI or
+     *                 PlaybackThreadExecutor to drive the player
+     */
+    public void addListener(EventStream.Listener<MediaItem> listener, Executor executor) {
+        mediaItemStream.addListener(listener, executor);
+    }
+
+    /**
+     * Stops sending media items to the listener
+     * @param listener Who to stop telling
+     */
+    public void removeListener(EventStream.Listener<MediaItem> listener) {
+        mediaItemStream.removeListener(listener);
+    }
+
+    /**
+     * Adds a listener for going offline and back online.  While offline listeners are sent the
+     * playlist snapshot, so only media that was downloaded completely will play.
+     * @param listener Who to tell, true when going offline
+     * @param executor Where to tell them
+     */
+    public void addOfflineListener(EventStream.Listener<Boolean> listener, Executor executor) {
+        offlineStream.addListener(listener, executor);
+    }
+
+    /**
+     * Stops telling the listener about going offline
+     * @param listener Who to stop telling
+     */
+    public void removeOfflineListener(EventStream.Listener<Boolean> listener) {
+        offlineStream.removeListener(listener);
+    }
+
+    /**
+     * @return Whether we are playing the playlist snapshot because the server can't be reached
+     */
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * Listeners have room for more media items, i.e., the player let go of ones it played
+     * @param count How many more they can take
+     */
+    public void requestMediaItems(int count) {
+        if (demand == UNLIMITED_DEMAND) {
+            return;
+        }
+        setMediaItemDemand((int) Math.min((long) demand + count, UNLIMITED_DEMAND - 1));
+    }
+
+    /**
+     * Replaces how many more media items listeners have room for, i.e., a new player that holds
+     * none of the ones sent so far
+     * @param count How many they can take, UNLIMITED_DEMAND for all of them
+     */
+    public void setMediaItemDemand(int count) {
+        demand = count;
+        if (mediaItemList != null) {
+            onMediaItemFilled();
+            resolveWindow.resolveAhead(resolver);
+        }
+    }
+
+    /**
+     * Points the service at a different server, handy for testing against a local one.  The
+     * snapshot and cache stay where the config put them, a service for another list for good
+     * should be created with its own Config.fromResources(context, mediaListUrl).
+     * @param mediaListUrl URL of the media list, media items are looked up underneath it
+     */
+    public void setMediaListUrl(String mediaListUrl) {
+        this.mediaListUrl = mediaListUrl;
+
+        // Whatever we had came from somewhere else
+        mediaItemList = null;
+        mediaListEtag = null;
+        mediaListLastModified = null;
+    }
+
+    /**
+     * Starts over from the top of the media list, listeners will be sent every item in order
+     */
+    public void refreshMediaList()  {
+        if (released) {
+            return;
+        }
+
+        // Already starting over and the list isn't back yet, another go would only ask for it
+        // again.  Offline we do start over though, that is what replays the snapshot.
+        if (!offline && listFetchGeneration == listGeneration && listFetchFromTop) {
+            Log.d(TAG, "Refresh already in flight, joining it");
+            return;
+        }
+
+        // Init ourselve as we could be called over and over againn forever, anything still out
+        // is for the old list
+        scheduler.cancel(RequestScheduler.Lane.values());
+        itemFlights.clear();
+        updatePending = false;
+        resolveWindow.reset(mediaItemList == null ? null : mediaItemList.asList(), 0);
+        refreshStartedAt = clock.elapsedRealtime();
+        listComplete = false;
+        ++generation;
+        final int requestGeneration = ++listGeneration;
+
+        // On a cold start play whatever we had last time while we check it is still current
+        if (!snapshotChecked) {
+            snapshotChecked = true;
+            PlaylistSnapshot snapshot = loadSnapshot();
+            if (snapshot != null) {
+                playSnapshot(snapshot);
+
+                // Carries on from wherever playback has got to in the snapshot
+                boolean expired = snapshot.isExpired(clock.currentTimeMillis());
+                Log.d(TAG, "Playlist snapshot expired: " + expired);
+                if (expired) {
+                    fetchMediaList(requestGeneration, 1, true);
+                }
+                return;
+            }
+        }
+
+        fetchMediaList(requestGeneration, 1, false);
+    }
 
-/**
- * Access to the media lists, register your observer and it will send you a stream of updates
- * in order they are supposed to be played back in
- */
-public class MediaDataService extends Observable {
     /**
-     * What log tag we want to use
+     * Checks the media list for changes without starting over, listeners carry on from the item
+     * after the last one they were sent.  Media items we already resolved are kept, only new ids
+     * are looked up, so if nothing changed this costs a single request.
      */
-    private static final String TAG = "MediaDataService";
+    public void updateMediaList() {
+        if (released) {
+            return;
+        }
+        if (mediaItemList == null) {
+            // Nothing to keep yet
+            refreshMediaList();
+            return;
+        }
+
+        // Whatever comes back may already be out of date, check again once it is
+        if (listFetchGeneration == listGeneration) {
+            Log.d(TAG, "Media list fetch already in flight, updating after it");
+            updatePending = true;
+            return;
+        }
+
+        // Lookups already out keep going, the list only replaces them if it changed
+        fetchMediaList(++listGeneration, 1, true);
+    }
 
     /**
-     * How many HTTP threads we want to use, 4 is default but we want to slow things down to
-     * not stall the CPU or bandwidth while playing.
+     * Goes offline or back online, telling listeners if that is a change
+     * @param offline Whether we are playing the playlist snapshot because the server can't be
+     *                reached
      */
-    private static final int THREAD_POOL_SIZE = 1;
+    private void setOffline(boolean offline) {
+        if (this.offline == offline) {
+            return;
+        }
+        Log.i(TAG, offline ? "Offline, playing from the playlist snapshot" : "Back online");
+        this.offline = offline;
+        offlineStream.emit(offline);
+    }
 
     /**
-     * Our singleton instance
+     * The network came or went, if we are offline try the server again straight away rather than
+     * waiting out the backoff
+     * @param connected Whether there is a network now
      */
-    private static MediaDataService mInstance;
+    public void onConnectivityChanged(boolean connected) {
+        if (released || !offline || !connected) {
+            return;
+        }
+
+        Log.d(TAG, "Network is back, reconciling with the server");
+        listBackoffPolicy.onSuccess();
+        fetchMediaList(++listGeneration, 1, false);
+    }
 
     /**
-     * The Volley request queue
+     * The player couldn't play a media URL and has moved on to the next item.  The URL is kept
+     * from listeners for a while and the media items that had it are looked up again in the
+     * background, the rest of the list carries on as it was.
+     * @param url The media URL that failed
      */
-    private RequestQueue mRequestQueue;
+    public void reportPlaybackFailure(String url) {
+        Log.w(TAG, "Playback failed, quarantining: " + url);
+        urlQuarantine.add(url);
+        if (mediaItemList == null) {
+            return;
+        }
+
+        // Builds every URL to compare, fine for something that happens once in a long while.
+        // An id in the list more than once is looked up once, the answer goes to all of them.
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < mediaItemList.size(); i++) {
+            if (url.equals(mediaItemList.getUrl(i)) && ids.add(mediaItemList.getId(i))) {
+                reresolveMediaItem(mediaItemList.getId(i), url);
+            }
+        }
+    }
 
     /**
-     * Application context, apparently the the warning is a false positive
+     * Looks up a media item whose URL failed to play, skipping the validators so the server
+     * can't just tell us it hasn't changed.  Whichever list we have when it comes back gets the
+     * new URL wherever the id still has the failed one.
+     * @param id The media item id
+     * @param failedUrl The URL that failed to play
      */
-    private static Context mCtx;
+    private void reresolveMediaItem(final String id, final String failedUrl) {
+        final String url = mediaListUrl + "/" + id;
+        Log.d(TAG, "Looking up media item again: " + url);
+        itemValidators.remove(url);
+
+        final long requestStartedAt = clock.elapsedRealtime();
+        MediaJsonRequest<Map<String, String>> jsObjRequest = new MediaJsonRequest<>
+                (url, null, null, mediaItemResponseParser,
+                        new MediaJsonRequest.Listener<Map<String, String>>() {
+
+                    @Override
+                    public void onResponse(Map<String, String> urls, String etag, String lastModified, long expiresAt) {
+                        recordRequestTime(PlaybackMetrics.MEDIA_ITEM_REQUEST_MS, requestStartedAt);
+                        if (urls.isEmpty() || mediaItemList == null) {
+                            return;
+                        }
+
+                        String newUrl = urls.values().iterator().next();
+                        if (urlQuarantine.contains(newUrl)) {
+                            Log.w(TAG, "Media item still has a quarantined URL: " + id);
+                            return;
+                        }
+                        itemValidators.put(url, etag, lastModified, newUrl);
+
+                        for (int i = 0; i < mediaItemList.size(); i++) {
+                            if (id.equals(mediaItemList.getId(i)) && failedUrl.equals(mediaItemList.getUrl(i))) {
+                                mediaItemList.get(i).url = newUrl;
+                            }
+                        }
+                        int cursor = resolveWindow.getCursor();
+                        mediaItemList.retainWindow(cursor, cursor + resolveWindow.getReach());
+                        Log.d(TAG, "Media item has a new URL: " + id);
+                    }
+
+                    @Override
+                    public void onNotModified(long expiresAt) {
+                        // We didn't send validators
+                    }
+                }, new Response.ErrorListener() {
+
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        recordRequestTime(PlaybackMetrics.MEDIA_ITEM_REQUEST_MS, requestStartedAt);
+                        // It stays quarantined, and gets another chance once that is up
+                        Log.w(TAG, "Looking up media item again failed: " + error.getMessage());
+                    }
+                });
+
+        this.submit(jsObjRequest, RequestScheduler.Lane.BACKGROUND, null);
+    }
 
     /**
-     * Our list of mediaitems we build from the responses of API calls
+     * Schedules the next check for media list changes, replacing any already scheduled, unless
+     * the event stream will tell us about them
      */
-    private ArrayList<MediaItem> mediaItemList;
+    private void schedulePoll() {
+        executor.cancel(pollRunnable);
+        if (!eventStreamOpen) {
+            executor.executeDelayed(pollRunnable, pollIntervalMs);
+        }
+    }
 
     /**
-     * The index for the current media item with notified out observers with.  Used to serialize
-     * (aka keep in order) the data.
+     * Has media list changes pushed to us rather than polling for them, while the stream is open
+     * @param eventSource The event stream, it is started now and stopped when replaced, null to
+     *                    go back to polling
      */
-    public int mediaItemIndex = 0;
+    public void setEventSource(PlaylistEventSource eventSource) {
+        if (this.eventSource != null) {
+            this.eventSource.stop();
+        }
+        this.eventSource = eventSource;
+        eventStreamOpen = false;
+        eventStreamWasOpen = false;
+        if (eventSource != null) {
+            eventSource.setListener(eventListener);
+            eventSource.start();
+        }
+    }
 
     /**
-     * Singleton accessor
-     * @param context
+     * @return The media list we saved last time, or null if there isn't one worth playing
      */
-    private MediaDataService(Context context) {
-        mCtx = context;
-        mRequestQueue = getRequestQueue();
+    private PlaylistSnapshot loadSnapshot() {
+        PlaylistSnapshot snapshot = snapshotStore.load();
+        if (snapshot == null || snapshot.mediaItems.size() == 0) {
+            Log.d(TAG, "No playlist snapshot to start from");
+            return null;
+        }
+        return snapshot;
     }
 
     /**
-     * Singleton accessor
-     * @param context
-     * @return
+     * Works from the media list we saved last time like any other, so only what listeners have
+     * room for goes out and only the window around the cursor is built into objects
+     * @param snapshot The snapshot
      */
-    public static synchronized MediaDataService getInstance(Context context) {
-        if (mInstance == null) {
-            mInstance = new MediaDataService(context);
+    private void playSnapshot(PlaylistSnapshot snapshot) {
+        Log.d(TAG, "Starting from playlist snapshot of " + snapshot.mediaItems.size() + " media items");
+        mediaItemList = snapshot.mediaItems;
+        mediaListEtag = snapshot.etag;
+        mediaListLastModified = null;
+        mediaListExpiresAt = snapshot.expiresAt;
+        fromSnapshot = true;
+        ++generation;
+        resolveWindow.reset(mediaItemList.asList(), 0);
+        listComplete = false;
+
+        // Items we never resolved before it was saved are looked up like any other
+        onMediaItemFilled();
+        resolveWindow.resolveAhead(resolver);
+    }
+
+    /**
+     * Every media item in the list has been dealt with, keep the list for the next cold start
+     */
+    private void onMediaListComplete() {
+        if (listComplete) {
+            return;
         }
-        return mInstance;
+        listComplete = true;
+
+        // Nothing the server hasn't already seen to keep
+        if (fromSnapshot) {
+            return;
+        }
+
+        final PlaylistSnapshot snapshot = new PlaylistSnapshot(
+                mediaItemList.asList(), mediaListEtag, mediaListExpiresAt);
+        snapshotExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshotStore.save(snapshot);
+                    Log.d(TAG, "Saved playlist snapshot of " + snapshot.mediaItems.size() + " media items");
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save playlist snapshot: " + e.getMessage());
+                }
+            }
+        });
     }
 
-    public void refreshMediaList()  {
+    /**
+     * Gets the media list from the server
+     * @param requestGeneration Which media list fetch this is
+     * @param attempt Which attempt this is, starting at 1
+     * @param keepPosition Whether to carry on from the current position rather than the top
+     */
+    private void fetchMediaList(final int requestGeneration, final int attempt, final boolean keepPosition) {
+
+        // Hold off while the circuit breaker is open
+        long blockedForMs = listBackoffPolicy.getBlockedForMs();
+        if (blockedForMs > 0) {
+            Log.d(TAG, "Media list fetch held back for " + blockedForMs + "ms");
+            executor.executeDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (requestGeneration == listGeneration) {
+                        fetchMediaList(requestGeneration, attempt, keepPosition);
+                    }
+                }
+            }, blockedForMs);
+            return;
+        }
 
-        // Init ourselve as we could be called over and over againn forever
-        mediaItemIndex = 0;
+        // Callers until it is back join it
+        listFetchGeneration = requestGeneration;
+        listFetchFromTop = !keepPosition;
 
         // Setup URL
-        String url = mCtx.getString(R.string.media_list_url);
+        String url = mediaListUrl;
         Log.d(TAG, "Starting getting media list from server: " + url);
 
-        JsonObjectRequest jsObjRequest = new JsonObjectRequest
-            (Request.Method.GET, url, null, new Response.Listener<JSONObject>() {
+        // Only ask conditionally when we have a list to fall back on
+        boolean haveList = mediaItemList != null;
+
+        final long requestStartedAt = clock.elapsedRealtime();
+        MediaJsonRequest<MediaListParser.MediaList> jsObjRequest = new MediaJsonRequest<>
+            (url, haveList ? mediaListEtag : null, haveList ? mediaListLastModified : null, mediaListResponseParser,
+                    new MediaJsonRequest.Listener<MediaListParser.MediaList>() {
 
                 @Override
-                public void onResponse(JSONObject response) {
-                    Log.d(TAG, "Get media list response received: " + response.toString());
+                public void onResponse(MediaListParser.MediaList response, String etag, String lastModified, long expiresAt) {
+                    recordRequestTime(PlaybackMetrics.MEDIA_LIST_REQUEST_MS, requestStartedAt);
+                    Log.d(TAG, "Get media list response received: " + response.mediaItems.size() + " media items");
+
+                    // A newer fetch has already gone out
+                    if (requestGeneration != listGeneration) {
+                        return;
+                    }
 
                     // Despite the 200, we have to add sanity checks here
                     // Ensure the list has values
-                    try {
+                    if (response.mediaItems.isEmpty()) {
+                        Log.w(TAG, "Media list is empty.  This is a known issue with API.");
+                        retryMediaList(requestGeneration, attempt, keepPosition);
+                        return;
+                    }
 
-                        // Parse response
-                        JSONArray mediaItems = null;
-                        try {
-                            mediaItems = response.getJSONArray("media_items");
-                        }
-                        catch(JSONException e) {
-                            Log.w(TAG, "Known issue with missing media_items element, compensating...");
-                            // Find first element and use value as media_items
+                    listBackoffPolicy.onSuccess();
+                    setOffline(false);
+                    mediaListEtag = etag;
+                    mediaListLastModified = lastModified;
+                    mediaListExpiresAt = expiresAt;
 
-                        }
-                        // Do some sanity checks
-                        if (mediaItems == null || mediaItems.length() < 1) {
-                            Log.w(TAG, "Media list is empty.  This is a known issue with API.");
-                            refreshMediaList();
-                            return;
-                        }
+                    // Newer servers can look up many ids in one go
+                    resolveWindow.setBatchSupported(response.batchResolve);
 
-                        // Init our list
-                        mediaItemList = new ArrayList<>(mediaItems.length());
+                    onMediaList(response.mediaItems, keepPosition);
+                }
 
-                        // Copy values from response
-                        for (int i = 0; i < mediaItems.length(); i++) {
-                            String mediaId = mediaItems.getString(i);
-                            Log.d(TAG, "Adding media item: " + mediaId);
-                            mediaItemList.add(new MediaItem(mediaId, i));
-                        }
+                @Override
+                public void onNotModified(long expiresAt) {
+                    recordRequestTime(PlaybackMetrics.MEDIA_LIST_REQUEST_MS, requestStartedAt);
+                    // A newer fetch has already gone out
+                    if (requestGeneration != listGeneration) {
+                        return;
+                    }
 
-                        // Trigger the media item requests
-                        fillMediaItemList();
+                    // Same ids as we already have, no parsing needed
+                    Log.d(TAG, "Media list not modified");
+                    listBackoffPolicy.onSuccess();
+                    setOffline(false);
+                    mediaListExpiresAt = expiresAt;
 
-                    } catch (JSONException e) {
-                        // Based parsing, retry!
-                        Log.w(TAG, "Media list response could not be parsed: " + e.getMessage());
-                        refreshMediaList();
-                    }
+                    onMediaList(CompactPlaylistStore.unresolvedCopyOf(mediaItemList), keepPosition);
                 }
             }, new Response.ErrorListener() {
 
                 @Override
                 public void onErrorResponse(VolleyError error) {
-                    // Bad response, retry!
+                    recordRequestTime(PlaybackMetrics.MEDIA_LIST_REQUEST_MS, requestStartedAt);
+                    // Bad response or it couldn't be parsed, retry!
                     Log.w(TAG, "Get media list error response received: " + error.getMessage());
-                    refreshMediaList();
+                    retryMediaList(requestGeneration, attempt, keepPosition);
                 }
             });
 
-        // Add to queue
-        this.addToRequestQueue(jsObjRequest);
+        // Nothing plays until the list comes back, unless listeners already have one
+        this.submit(jsObjRequest, keepPosition ?
+                RequestScheduler.Lane.BACKGROUND : RequestScheduler.Lane.NEXT, null);
     }
 
     /**
-     * Fills in the details of the media list items using the HTTP Queue
-     * starting in the playback order, however, the HTTP responses can be out of order
+     * We have the media list, start sending and resolving items from it
+     * @param mediaItems The media list in playback order, nothing resolved
+     * @param keepPosition Whether to carry on from the current position rather than the top
      */
-    private void fillMediaItemList () {
-        for (MediaItem item : mediaItemList) {
-            this.fillMediaItem(item);
+    private void onMediaList(CompactPlaylistStore mediaItems, boolean keepPosition) {
+        listFetchGeneration = -1;
+        applyMediaList(mediaItems, keepPosition);
+
+        // Check back for changes later
+        schedulePoll();
+
+        // Send anything we already had, and trigger the media item requests
+        onMediaItemFilled();
+        resolveWindow.resolveAhead(resolver);
+
+        // Changed while we were fetching
+        if (updatePending) {
+            updatePending = false;
+            updateMediaList();
+        }
+    }
+
+    /**
+     * Schedules another go at the media list once the backoff policy says so
+     * @param requestGeneration Which media list fetch failed
+     * @param attempt The attempt that just failed
+     * @param keepPosition Whether the refresh carries on from the current position
+     */
+    private void retryMediaList(final int requestGeneration, final int attempt, final boolean keepPosition) {
+        if (requestGeneration != listGeneration) {
+            return;
+        }
+
+        // Nothing is playing until this works, play what we had last time and keep trying
+        // behind it, that way a flaky backend never leaves the screen dark.  When the server is
+        // back we carry on from wherever playback got to in the snapshot.
+        boolean carryOn = keepPosition;
+        if (!keepPosition && !fromSnapshot) {
+            PlaylistSnapshot snapshot = loadSnapshot();
+            if (snapshot != null) {
+                Log.w(TAG, "Media list unreachable, playing the playlist snapshot offline");
+                setOffline(true);
+                playSnapshot(snapshot);
+                carryOn = true;
+            }
+        }
+        if (fromSnapshot) {
+            setOffline(true);
+        }
+        final boolean nextKeepPosition = carryOn;
+
+        // We can't play anything without a list so there is no giving up here
+        long delayMs = listBackoffPolicy.onFailure(attempt);
+        Log.d(TAG, "Retrying media list in " + delayMs + "ms, attempt " + (attempt + 1));
+        executor.executeDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (requestGeneration == listGeneration) {
+                    fetchMediaList(requestGeneration, attempt + 1, nextKeepPosition);
+                }
+            }
+        }, delayMs);
+    }
+
+    /**
+     * Replaces the media list with the one from the server, keeping the URLs of any we already
+     * resolved and dropping the ones that are gone
+     * @param mediaItems The new media list in playback order, nothing resolved
+     * @param keepPosition Whether to carry on after the last item listeners were sent, rather
+     *                     than starting over from the top
+     */
+    private void applyMediaList(CompactPlaylistStore mediaItems, boolean keepPosition) {
+        // Work out where the cursor lands in the new list before we replace the old one
+        int cursor = keepPosition ? findCursor(mediaItems) : 0;
+
+        // What we know so far
+        int reused = mediaItems.carryOverUrls(mediaItemList);
+        Log.d(TAG, "Media list of " + mediaItems.size() + " items, " + reused + " already resolved, continuing from " + cursor);
+
+        // Lookups still out are for the old list
+        scheduler.cancel(RequestScheduler.Lane.NEXT, RequestScheduler.Lane.LOOKAHEAD);
+        itemFlights.clear();
+        ++generation;
+        mediaItemList = mediaItems;
+        fromSnapshot = false;
+        resolveWindow.reset(mediaItemList.asList(), cursor);
+        listComplete = false;
+    }
+
+    /**
+     * Finds where listeners should carry on from in a new media list: just after the same
+     * occurrence of the last id they were sent
+     * @param mediaItems The new media list
+     * @return Index of the next item to send in the new list
+     */
+    private int findCursor(PlaylistView mediaItems) {
+        int sent = Math.min(resolveWindow.getCursor(), getTotalMediaItemCount());
+        if (sent == 0) {
+            return 0;
+        }
+
+        // Which occurrence of the id was it, the same clip can be in the list more than once
+        int last = sent - 1;
+        int occurrence = 0;
+        for (int i = 0; i < sent; i++) {
+            if (mediaItemList.hasSameId(i, mediaItemList, last)) {
+                occurrence++;
+            }
         }
+
+        for (int i = 0; i < mediaItems.size(); i++) {
+            if (mediaItems.hasSameId(i, mediaItemList, last) && --occurrence == 0) {
+                return i + 1;
+            }
+        }
+
+        // It was removed, carry on from about the same place
+        return Math.min(sent, mediaItems.size());
     }
 
     /**
-     * Fills in a single media item using the ID
+     * Fills in a group of media items with a single request, anything the server leaves out of
+     * the response is looked up on its own
+     * @param mediaItems The media items to fill in
+     * @param requestGeneration The media list this request is for
+     * @param attempt Which attempt this is, starting at 1
      */
-    private void fillMediaItem (final MediaItem mediaItem) {
+    private void fillMediaItemBatch(final List<MediaItem> mediaItems, final int requestGeneration, final int attempt) {
+
+        // Hold off while the circuit breaker is open
+        long blockedForMs = itemBackoffPolicy.getBlockedForMs();
+        if (blockedForMs > 0) {
+            Log.d(TAG, "Media item batch held back for " + blockedForMs + "ms");
+            executor.executeDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (requestGeneration == generation) {
+                        fillMediaItemBatch(mediaItems, requestGeneration, attempt);
+                    }
+                }
+            }, blockedForMs);
+            return;
+        }
+
         // Setup URL
-        String url = mCtx.getString(R.string.media_list_url) + "/" + mediaItem.id;
-        Log.d(TAG, "Starting getting a media item from server: " + url);
+        StringBuilder ids = new StringBuilder();
+        for (MediaItem mediaItem : mediaItems) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(encode(mediaItem.id));
+        }
+        String url = mediaListUrl + "?ids=" + ids;
+        Log.d(TAG, "Starting getting " + mediaItems.size() + " media items from server: " + url);
 
-        JsonObjectRequest jsObjRequest = new JsonObjectRequest
-                (Request.Method.GET, url, null, new Response.Listener<JSONObject>() {
+        final long requestStartedAt = clock.elapsedRealtime();
+        MediaJsonRequest<Map<String, String>> jsObjRequest = new MediaJsonRequest<>
+                (url, mediaItemResponseParser, new MediaJsonRequest.Listener<Map<String, String>>() {
 
                     @Override
-                    public void onResponse(JSONObject response) {
-                        Log.d(TAG, "Get media item response received: " + response.toString());
+                    public void onResponse(Map<String, String> urls, String etag, String lastModified, long expiresAt) {
+                        recordRequestTime(PlaybackMetrics.MEDIA_BATCH_REQUEST_MS, requestStartedAt);
+                        // Belongs to a media list we have since replaced
+                        if (requestGeneration != generation) {
+                            return;
+                        }
+
+                        Log.d(TAG, "Get media item batch response received: " + urls.size() + " of " + mediaItems.size());
+                        itemBackoffPolicy.onSuccess();
+
+                        // Fill in what we can, the rest go one at a time
+                        for (MediaItem mediaItem : mediaItems) {
+                            String mediaUrl = urls.get(mediaItem.id);
+                            if (mediaUrl != null && !mediaUrl.isEmpty()) {
+                                mediaItem.url = mediaUrl;
+                            } else {
+                                Log.w(TAG, "Media item missing from batch: " + mediaItem.id);
+                                resolveWindow.onResolveStarted();
+                                fillMediaItem(mediaItem, requestGeneration);
+                            }
+                        }
+
+                        onMediaItemFilled();
+                        onResolveFinished(requestGeneration);
+                    }
 
-                        // Do some sanity checks
-                        // Parse response
-                        JSONArray subMediaItems;
+                    @Override
+                    public void onNotModified(long expiresAt) {
+                        recordRequestTime(PlaybackMetrics.MEDIA_BATCH_REQUEST_MS, requestStartedAt);
+                        // Never sent conditionally
+                    }
+                }, new Response.ErrorListener() {
 
-                        try {
-                            subMediaItems = response.getJSONArray("id");
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        recordRequestTime(PlaybackMetrics.MEDIA_BATCH_REQUEST_MS, requestStartedAt);
+                        // Belongs to a media list we have since replaced
+                        if (requestGeneration != generation) {
+                            return;
+                        }
 
-                            // Sanity checks
-                            if (subMediaItems == null || subMediaItems.length() < 1) {
-                                Log.e(TAG, "Media item contains more than one item.  Skipping but should we retry?");
-                                return;
+                        // The server doesn't know the batch endpoint after all, fall back
+                        if (error.networkResponse != null &&
+                                error.networkResponse.statusCode >= 400 &&
+                                error.networkResponse.statusCode < 500) {
+                            Log.w(TAG, "Batch resolve rejected, falling back to single lookups");
+                            resolveWindow.setBatchSupported(false);
+                            for (MediaItem mediaItem : mediaItems) {
+                                resolveWindow.onResolveStarted();
+                                fillMediaItem(mediaItem, requestGeneration);
                             }
+                            onResolveFinished(requestGeneration);
+                            return;
+                        }
 
-                            // Now fill in the data
-                            mediaItem.url = ((JSONObject)subMediaItems.get(0)).getString("url");
-                            if (mediaItem.url == null || mediaItem.url.isEmpty()) {
-                                Log.e(TAG, "Media item missing URL");
-                                fillMediaItem(mediaItem);
+                        // Bad response, retry!
+                        Log.w(TAG, "Get media item batch error response received: " + error.getMessage());
+                        long delayMs = itemBackoffPolicy.onFailure(attempt);
+                        if (delayMs == BackoffPolicy.GIVE_UP) {
+                            // Let each one have its own go before we skip anything
+                            for (MediaItem mediaItem : mediaItems) {
+                                resolveWindow.onResolveStarted();
+                                fillMediaItem(mediaItem, requestGeneration);
+                            }
+                            onResolveFinished(requestGeneration);
+                            return;
+                        }
+                        executor.executeDelayed(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (requestGeneration == generation) {
+                                    fillMediaItemBatch(mediaItems, requestGeneration, attempt + 1);
+                                }
                             }
+                        }, delayMs);
+                    }
+                });
+
+        // Items of a batch resolve together, so the first one stands for it
+        this.submit(jsObjRequest, laneFor(mediaItems.get(0)), mediaItems.get(0));
+    }
+
+    /**
+     * A media item request finished, good or bad, so make room for the next one
+     * @param requestGeneration The media list the request was for
+     */
+    private void onResolveFinished(int requestGeneration) {
+        if (requestGeneration != generation) {
+            return;
+        }
+        resolveWindow.onResolveFinished(resolver);
+    }
+
+    /**
+     * Fills in a single media item using the ID.  The same id can be in the list more than once,
+     * if it is already being looked up this item waits on that request rather than sending its own.
+     * @param mediaItem The media item to fill in
+     * @param requestGeneration The media list this request is for
+     */
+    private void fillMediaItem(final MediaItem mediaItem, final int requestGeneration) {
+        // Playing the snapshot offline the lookup can only fail, skip it rather than hold up
+        // the items behind it
+        if (offline) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (requestGeneration == generation) {
+                        Log.d(TAG, "Offline, skipping unresolved media item: " + mediaItem.id);
+                        mediaItem.failed = true;
+                        onMediaItemFilled();
+                        onResolveFinished(requestGeneration);
+                    }
+                }
+            });
+            return;
+        }
+
+        final String url = mediaListUrl + "/" + mediaItem.id;
+        boolean first = itemFlights.join(url, new SingleFlight.Callback<String>() {
+            @Override
+            public void onSuccess(String mediaUrl) {
+                // Belongs to a media list we have since replaced
+                if (requestGeneration != generation) {
+                    return;
+                }
+
+                // Now fill in the data
+                mediaItem.url = mediaUrl;
+                Log.d(TAG, "Media item added: " + mediaItem.id);
+                onMediaItemFilled();
+                onResolveFinished(requestGeneration);
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                // Belongs to a media list we have since replaced
+                if (requestGeneration != generation) {
+                    return;
+                }
+
+                // Skip it so the rest of the list can carry on, unless its deadline already did
+                if (!mediaItem.failed) {
+                    Log.e(TAG, "Giving up on media item: " + mediaItem.id);
+                    mediaItem.failed = true;
+                    onMediaItemFilled();
+                }
+                onResolveFinished(requestGeneration);
+            }
+        });
+        if (!first) {
+            Log.d(TAG, "Media item already being looked up, waiting on it: " + url);
+            return;
+        }
+
+        requestMediaItem(url, mediaItem, requestGeneration, 1);
+    }
+
+    /**
+     * Gets a media item from the server for everyone waiting on it
+     * @param url The media item URL
+     * @param mediaItem The media item that started the lookup, it decides the lane
+     * @param requestGeneration The media list this request is for
+     * @param attempt Which attempt this is, starting at 1
+     */
+    private void requestMediaItem(final String url, final MediaItem mediaItem,
+                                  final int requestGeneration, final int attempt) {
+
+        // Hold off while the circuit breaker is open
+        long blockedForMs = itemBackoffPolicy.getBlockedForMs();
+        if (blockedForMs > 0) {
+            Log.d(TAG, "Media item fetch held back for " + blockedForMs + "ms");
+            executor.executeDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (requestGeneration == generation) {
+                        requestMediaItem(url, mediaItem, requestGeneration, attempt);
+                    }
+                }
+            }, blockedForMs);
+            return;
+        }
+
+        Log.d(TAG, "Starting getting a media item from server: " + url);
+
+        // Ask conditionally if we have seen this one before
+        ValidatorCache.Entry validators = itemValidators.get(url);
+
+        final long requestStartedAt = clock.elapsedRealtime();
+        MediaJsonRequest<Map<String, String>> jsObjRequest = new MediaJsonRequest<>
+                (url, validators == null ? null : validators.etag,
+                        validators == null ? null : validators.lastModified, mediaItemResponseParser,
+                        new MediaJsonRequest.Listener<Map<String, String>>() {
+
+                    @Override
+                    public void onResponse(Map<String, String> urls, String etag, String lastModified, long expiresAt) {
+                        recordRequestTime(PlaybackMetrics.MEDIA_ITEM_REQUEST_MS, requestStartedAt);
+                        Log.d(TAG, "Get media item response received: " + mediaItem.id);
+
+                        // Belongs to a media list we have since replaced
+                        if (requestGeneration != generation) {
+                            return;
+                        }
+
+                        // Sanity checks, the first entry is the one we asked for
+                        if (urls.isEmpty()) {
+                            Log.e(TAG, "Media item missing URL, retrying");
+                            retryMediaItem(url, mediaItem, requestGeneration, attempt,
+                                    new VolleyError("Media item missing URL"));
+                            return;
+                        }
 
-                            Log.d(TAG, "Media item added: " + mediaItem.id);
+                        String mediaUrl = urls.values().iterator().next();
+                        itemBackoffPolicy.onSuccess();
+                        itemValidators.put(url, etag, lastModified, mediaUrl);
+                        itemFlights.succeed(url, mediaUrl);
+                    }
 
-                            onMediaItemFilled();
+                    @Override
+                    public void onNotModified(long expiresAt) {
+                        recordRequestTime(PlaybackMetrics.MEDIA_ITEM_REQUEST_MS, requestStartedAt);
+                        // Belongs to a media list we have since replaced
+                        if (requestGeneration != generation) {
+                            return;
+                        }
 
-                        } catch (JSONException e) {
-                            // Retry
-                            Log.w(TAG, "Media item parsing exception: " + e.getMessage());
-                            fillMediaItem(mediaItem);
+                        // We may have forgotten it since asking, if so ask again without validators
+                        ValidatorCache.Entry validators = itemValidators.get(url);
+                        if (validators == null) {
+                            requestMediaItem(url, mediaItem, requestGeneration, attempt);
+                            return;
                         }
+
+                        Log.d(TAG, "Media item not modified: " + mediaItem.id);
+                        itemBackoffPolicy.onSuccess();
+                        itemFlights.succeed(url, validators.value);
                     }
                 }, new Response.ErrorListener() {
 
                     @Override
                     public void onErrorResponse(VolleyError error) {
-                        // Bad response, retry!
+                        recordRequestTime(PlaybackMetrics.MEDIA_ITEM_REQUEST_MS, requestStartedAt);
+                        // Bad response or it couldn't be parsed, retry!
                         Log.w(TAG, "Get media item error response received: " + error.getMessage());
-                        fillMediaItem(mediaItem);
+                        retryMediaItem(url, mediaItem, requestGeneration, attempt, error);
                     }
                 });
 
-        // Add to queue
-        this.addToRequestQueue(jsObjRequest);
+        this.submit(jsObjRequest, laneFor(mediaItem), mediaItem);
     }
 
     /**
-     * One of the media item responses came back OK, determine if this is next in line for
-     * observers
+     * @param mediaItem A media item being looked up
+     * @return The next lane if playback is waiting on it, lookahead if it is further down
      */
-    private void onMediaItemFilled () {
-
-        // Out of bounds!
-        if (mediaItemIndex >= getTotalMediaItemCount()) {
-            Log.d(TAG, "At the end of media list." + mediaItemIndex);
+    private RequestScheduler.Lane laneFor(MediaItem mediaItem) {
+        int cursor = resolveWindow.getCursor();
+        if (cursor < getTotalMediaItemCount() && mediaItemList.get(cursor) == mediaItem) {
+            return RequestScheduler.Lane.NEXT;
+        }
+        return RequestScheduler.Lane.LOOKAHEAD;
+    }
 
-            // reset index
-            mediaItemIndex = 0;
+    /**
+     * Schedules another go at a media item once the backoff policy says so, or gives up on it for
+     * everyone waiting so the rest of the list can carry on.  Retrying once for all of them keeps
+     * a duplicated id from counting each failure more than once towards the circuit breaker.
+     * @param url The media item URL
+     * @param mediaItem The media item that started the lookup
+     * @param requestGeneration The media list the failed request was for
+     * @param attempt The attempt that just failed
+     * @param error What went wrong
+     */
+    private void retryMediaItem(final String url, final MediaItem mediaItem, final int requestGeneration,
+                                final int attempt, VolleyError error) {
+        // Don't bother retrying for a media list we have since replaced
+        if (requestGeneration != generation) {
+            return;
+        }
 
+        // Its deadline passed and it was skipped, nobody is waiting for it any more
+        if (mediaItem.failed && itemFlights.getWaiting(url) <= 1) {
+            Log.d(TAG, "Not retrying skipped media item: " + mediaItem.id);
+            itemFlights.fail(url, error);
+            return;
+        }
 
+        long delayMs = itemBackoffPolicy.onFailure(attempt);
+        if (delayMs == BackoffPolicy.GIVE_UP) {
+            Log.e(TAG, "Giving up on media item after " + attempt + " attempts: " + mediaItem.id);
+            itemFlights.fail(url, error);
             return;
         }
 
-        MediaItem currentMediaItem = mediaItemList.get(mediaItemIndex);
-        if (currentMediaItem == null ||
-                currentMediaItem.url == null ||
-                currentMediaItem.url.isEmpty()) {
-            Log.d(TAG, "Current media item is null, waiting: " + mediaItemIndex);
+        Log.d(TAG, "Retrying media item " + mediaItem.id + " in " + delayMs + "ms");
+        executor.executeDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (requestGeneration == generation) {
+                    requestMediaItem(url, mediaItem, requestGeneration, attempt + 1);
+                }
+            }
+        }, delayMs);
+    }
+
+    /**
+     * One of the media item responses came back OK, or the one at the head ran out of time,
+     * send listeners everything that is now ready in order.  Loops rather than recursing so a
+     * long run of ready items can't build up the stack.  Only ever runs on our executor, where
+     * Volley delivers and every delay is posted, so the window needs no locking.
+     */
+    private void onMediaItemFilled () {
+
+        // Only let out what listeners have room for
+        MediaItem readyMediaItem;
+        while (demand > 0 && (readyMediaItem = resolveWindow.pollReady()) != null) {
+            // Notify we're all done
+            Log.d(TAG, "Notifying listeners: " + readyMediaItem.sequenceNumber);
+            if (emitMediaItem(readyMediaItem) && demand != UNLIMITED_DEMAND) {
+                demand--;
+            }
+        }
+
+        // Only what is being looked up needs to exist as objects
+        int cursor = resolveWindow.getCursor();
+        if (mediaItemList != null) {
+            mediaItemList.retainWindow(cursor, cursor + resolveWindow.getReach());
+        }
+
+        // Out of bounds!  The cursor stays put so an update knows everything was sent
+        if (resolveWindow.isDrained()) {
+            Log.d(TAG, "At the end of media list." + resolveWindow.getCursor());
+            executor.cancel(deadlineRunnable);
+            onMediaListComplete();
             return;
         }
 
-        // If we have a URL,  increment on current index
-        // also, keep trying to fire in case things went out of order
+        // Playback is waiting on this one now, get it out ahead of the rest
+        scheduler.promote(mediaItemList.get(resolveWindow.getCursor()));
 
+        // Come back when the one we are waiting on runs out of time, so it can be skipped.
+        // Nobody is waiting on it while listeners are full, asking for more checks again.
+        long headDeadline = resolveWindow.getHeadDeadline();
+        executor.cancel(deadlineRunnable);
+        if (headDeadline >= 0 && demand > 0) {
+            executor.executeDelayed(deadlineRunnable,
+                    Math.max(0, headDeadline - clock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Sends a media item to listeners, unless its URL failed to play lately, the first one after
+     * a refresh tells us how long startup took on our side
+     * @param mediaItem The next media item in playback order
+     * @return Whether it went out
+     */
+    private boolean emitMediaItem(MediaItem mediaItem) {
+        // The player already failed on this URL, don't give it to it again yet
+        if (urlQuarantine.contains(mediaItem.url)) {
+            Log.w(TAG, "Skipping quarantined media item: " + mediaItem.id);
+            return false;
+        }
 
-        // Notify we're all done
-        Log.d(TAG, "Notifying observers: " + mediaItemIndex);
-        setChanged();
-        notifyObservers(mediaItemList.get(mediaItemIndex));
+        if (refreshStartedAt >= 0) {
+            metrics.record(PlaybackMetrics.REFRESH_TO_FIRST_ITEM_MS, clock.elapsedRealtime() - refreshStartedAt);
+            refreshStartedAt = -1;
+        }
+        mediaItemStream.emit(mediaItem);
+        return true;
+    }
 
-        this.mediaItemIndex++;
-        onMediaItemFilled();
+    /**
+     * Records how long a request took, good or bad
+     * @param name Which request histogram
+     * @param requestStartedAt When the request was queued
+     */
+    private void recordRequestTime(String name, long requestStartedAt) {
+        metrics.record(name, clock.elapsedRealtime() - requestStartedAt);
     }
 
     /**
@@ -272,39 +1663,45 @@ public class MediaDataService extends Observable {
     }
 
     /**
-     * Lazy initializes our Volley HTTP Queue with disk based caching
-     * @return RequestQueue
+     * @param id A media item id
+     * @return The id made safe for a query string
      */
-    private RequestQueue getRequestQueue() {
-        if (mRequestQueue == null) {
-
-            Log.d(TAG, "Creating new HTTP queue");
-
-            // Instantiate the cache
-            Cache cache = new DiskBasedCache(mCtx.getApplicationContext().getCacheDir(), 1024 * 1024); // 1MB cap
-
-            // Set up the network to use HttpURLConnection as the HTTP client.
-            Network network = new BasicNetwork(new HurlStack());
-
-            // getApplicationContext() is key, it keeps you from leaking the
-            // Activity or BroadcastReceiver if someone passes one in.
-            mRequestQueue = new RequestQueue(cache, network, THREAD_POOL_SIZE);
-
-            // Start the queue
-            mRequestQueue.start();
+    private static String encode(String id) {
+        try {
+            return URLEncoder.encode(id, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            // Every JVM has UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
 
+    /**
+     * @param mediaListUrl A media list URL
+     * @return A short name for the media list that is safe in a file name, the same every run
+     */
+    static String fileKey(String mediaListUrl) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(mediaListUrl.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                key.append(String.format("%02x", digest[i]));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Every JVM has both
+            throw new IllegalStateException(e);
         }
-        return mRequestQueue;
     }
 
     /**
-     * A facade on top of adding to request queue add, we don't do anything special beyond
-     * just add to the queue
-     * @param req
-     * @param <T>
+     * Hands a request to the scheduler, it goes out to the transport once its lane has room
+     * @param req The request
+     * @param lane How much playback depends on it
+     * @param tag The media item it looks up, null for none
      */
-    private <T> void addToRequestQueue(Request<T> req) {
-        getRequestQueue().add(req);
+    private void submit(MediaJsonRequest<?> req, RequestScheduler.Lane lane, Object tag) {
+        req.setClock(clock);
+        scheduler.submit(req, lane, tag);
     }
 
 }
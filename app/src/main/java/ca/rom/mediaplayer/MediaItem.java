@@ -27,6 +27,11 @@ public class MediaItem {
      */
     public String url;
 
+    /**
+     * Set once we have given up on resolving the URL, the item is skipped
+     */
+    public boolean failed;
+
     /**
      * Constructor
      * @param id
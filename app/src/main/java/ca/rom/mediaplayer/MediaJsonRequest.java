@@ -0,0 +1,209 @@
+package ca.rom.mediaplayer;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A JSON GET that runs its response through a parser on the network thread and hands the
+ * result, with the response's caching headers, i.e., ETag and expiry, to the listener so they
+ * can be kept alongside what we build from it.  Given validators from a previous response it
+ * asks conditionally, and a 304 skips parsing altogether.  Volley's own cache is bypassed as it
+ * would turn a 304 back into the full cached body.
+ * @param <T> What the response is parsed into
+ */
+public class MediaJsonRequest<T> extends Request<T> {
+
+    /**
+     * Turns a response body into something useful
+     * @param <T> What the response is parsed into
+     */
+    public interface Parser<T> {
+        /**
+         * @param reader The response body
+         * @return What it boiled down to
+         * @throws IOException If the body isn't what we expect
+         */
+        T parse(Reader reader) throws IOException;
+    }
+
+    /**
+     * Called with the parsed response and its caching headers
+     * @param <T> What the response is parsed into
+     */
+    public interface Listener<T> {
+        /**
+         * @param response The parsed response
+         * @param etag ETag of the response, null if it didn't have one
+         * @param lastModified Last-Modified of the response, null if it didn't have one
+         * @param expiresAt Wall clock time the response is good until, 0 if it didn't say
+         */
+        void onResponse(T response, String etag, String lastModified, long expiresAt);
+
+        /**
+         * The server says nothing changed since the validators we sent
+         * @param expiresAt Wall clock time the response is good until, 0 if it didn't say
+         */
+        void onNotModified(long expiresAt);
+    }
+
+    /**
+     * What reads the body
+     */
+    private final Parser<T> parser;
+
+    /**
+     * Who gets the response
+     */
+    private final Listener<T> listener;
+
+    /**
+     * ETag to send as If-None-Match, null to not send one
+     */
+    private final String ifNoneMatch;
+
+    /**
+     * Last-Modified to send as If-Modified-Since, null to not send one
+     */
+    private final String ifModifiedSince;
+
+    /**
+     * Caching headers of the response, set on the network thread before delivery
+     */
+    private volatile Cache.Entry cacheHeaders;
+
+    /**
+     * Last-Modified of the response exactly as the server sent it
+     */
+    private volatile String lastModified;
+
+    /**
+     * How long the response is good for from when it came in, set on the network thread before
+     * delivery
+     */
+    private volatile long freshForMs;
+
+    /**
+     * Whether the response was a 304
+     */
+    private volatile boolean notModified;
+
+    /**
+     * Where Volley puts us in its queue
+     */
+    private volatile Priority priority = Priority.NORMAL;
+
+    /**
+     * Dates the response's expiry for the listener
+     */
+    private volatile Clock clock = Clock.SYSTEM;
+
+    /**
+     * Constructor for an unconditional GET
+     * @param url URL to GET
+     * @param parser Reads the response body
+     * @param listener Called with the parsed response
+     * @param errorListener Called when things go wrong
+     */
+    public MediaJsonRequest(String url, Parser<T> parser, Listener<T> listener,
+                            Response.ErrorListener errorListener) {
+        this(url, null, null, parser, listener, errorListener);
+    }
+
+    /**
+     * Constructor for a conditional GET
+     * @param url URL to GET
+     * @param ifNoneMatch ETag from the last response, null if there wasn't one
+     * @param ifModifiedSince Last-Modified from the last response, null if there wasn't one
+     * @param parser Reads the response body
+     * @param listener Called with the parsed response, or told it wasn't modified
+     * @param errorListener Called when things go wrong
+     */
+    public MediaJsonRequest(String url, String ifNoneMatch, String ifModifiedSince, Parser<T> parser,
+                            Listener<T> listener, Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        this.parser = parser;
+        this.listener = listener;
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+        setShouldCache(false);
+    }
+
+    /**
+     * @param priority Where Volley puts us in its queue, set before adding to it
+     */
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @param clock Dates the response's expiry for the listener, set before adding to the queue
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return priority;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = new HashMap<>(super.getHeaders());
+        if (ifNoneMatch != null) {
+            headers.put("If-None-Match", ifNoneMatch);
+        }
+        if (ifModifiedSince != null) {
+            headers.put("If-Modified-Since", ifModifiedSince);
+        }
+        return headers;
+    }
+
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        // Volley dates the expiry by the system clock, keep only how long it is good for
+        long parsedAt = System.currentTimeMillis();
+        cacheHeaders = HttpHeaderParser.parseCacheHeaders(response);
+        freshForMs = cacheHeaders == null ? 0 : Math.max(0, cacheHeaders.ttl - parsedAt);
+        lastModified = response.headers == null ? null : response.headers.get("Last-Modified");
+
+        // Nothing to parse, the listener already has it
+        if (response.notModified) {
+            notModified = true;
+            return Response.success(null, null);
+        }
+
+        // Volley already holds the whole body as bytes, reading them in place at least skips
+        // decoding it into a String and building a JSON tree from that
+        try {
+            Reader reader = new InputStreamReader(new ByteArrayInputStream(response.data),
+                    HttpHeaderParser.parseCharset(response.headers, "UTF-8"));
+            return Response.success(parser.parse(reader), null);
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(T response) {
+        Cache.Entry headers = cacheHeaders;
+        long expiresAt = headers == null || headers.ttl == 0 ? 0 : clock.currentTimeMillis() + freshForMs;
+        if (notModified) {
+            listener.onNotModified(expiresAt);
+            return;
+        }
+        listener.onResponse(response, headers == null ? null : headers.etag, lastModified, expiresAt);
+    }
+}
@@ -0,0 +1,162 @@
+package ca.rom.mediaplayer;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pull parser for the media API responses.  Builds media lists from the response body straight
+ * into a compact store without an intermediate String, JSON tree or object per id, so a media
+ * list of thousands of ids doesn't churn the heap.  The body itself is still read into memory
+ * whole by Volley before we get it.
+ * Uses Gson's JsonReader, which is the same reader as android.util.JsonReader but also runs on
+ * the JVM for benchmarking.
+ */
+public class MediaListParser {
+
+    /**
+     * What we get out of a media list response
+     */
+    public static class MediaList {
+        /**
+         * Media items in playback order, nothing resolved yet
+         */
+        public final CompactPlaylistStore mediaItems;
+
+        /**
+         * Whether the server can look up many ids in one request
+         */
+        public final boolean batchResolve;
+
+        public MediaList(CompactPlaylistStore mediaItems, boolean batchResolve) {
+            this.mediaItems = mediaItems;
+            this.batchResolve = batchResolve;
+        }
+    }
+
+    /**
+     * Parses a media list response, i.e., {"media_items": ["id", ...], "batch_resolve": true}.
+     * The API sometimes sends the list under a different name, in which case the first array in
+     * the response is used.
+     * @param in The response body
+     * @return The media list, empty if there were no ids
+     * @throws IOException If the response isn't the JSON we expect
+     */
+    public MediaList parseMediaList(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            CompactPlaylistStore mediaItems = null;
+            CompactPlaylistStore firstArray = null;
+            boolean batchResolve = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                JsonToken token = reader.peek();
+                if (name.equals("media_items") && token == JsonToken.BEGIN_ARRAY) {
+                    mediaItems = readMediaIds(reader);
+                } else if (name.equals("batch_resolve") && token == JsonToken.BOOLEAN) {
+                    batchResolve = reader.nextBoolean();
+                } else if (firstArray == null && mediaItems == null && token == JsonToken.BEGIN_ARRAY) {
+                    // Known issue with missing media_items element, compensating
+                    firstArray = readMediaIds(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (mediaItems == null) {
+                mediaItems = firstArray != null ? firstArray : new CompactPlaylistStore(1);
+            }
+            return new MediaList(mediaItems, batchResolve);
+        } catch (IllegalStateException e) {
+            // Thrown for a token of the wrong type
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a media item response, single or batched, i.e.,
+     * {"id": [{"id": "...", "url": "...", ...}, ...]}
+     * @param in The response body
+     * @return Media URLs by media item id in the order they came, entries without a URL are left
+     * out and an entry without an id is keyed by the empty string
+     * @throws IOException If the response isn't the JSON we expect
+     */
+    public Map<String, String> parseMediaItemUrls(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            Map<String, String> urls = new LinkedHashMap<>();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("id") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                            readMediaItemUrl(reader, urls);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            return urls;
+        } catch (IllegalStateException e) {
+            // Thrown for a token of the wrong type
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static CompactPlaylistStore readMediaIds(JsonReader reader) throws IOException {
+        CompactPlaylistStore mediaItems = new CompactPlaylistStore();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            JsonToken token = reader.peek();
+            if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                mediaItems.append(reader.nextString(), mediaItems.size());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return mediaItems;
+    }
+
+    private static void readMediaItemUrl(JsonReader reader, Map<String, String> urls) throws IOException {
+        String id = "";
+        String url = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (name.equals("id") && token == JsonToken.STRING) {
+                id = reader.nextString();
+            } else if (name.equals("url") && token == JsonToken.STRING) {
+                url = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (url != null && !url.isEmpty() && !urls.containsKey(id)) {
+            urls.put(id, url);
+        }
+    }
+}
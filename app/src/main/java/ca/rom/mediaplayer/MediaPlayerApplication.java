@@ -0,0 +1,15 @@
+package ca.rom.mediaplayer;
+
+import android.app.Application;
+
+/**
+ * Starts the media list fetch and playback warm up with the process, before any activity
+ */
+public class MediaPlayerApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupOrchestrator.getInstance(this).start();
+    }
+}
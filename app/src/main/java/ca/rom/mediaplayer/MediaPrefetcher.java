@@ -0,0 +1,313 @@
+package ca.rom.mediaplayer;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylist;
+import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistParser;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.util.UriUtil;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Warms the media cache for items that are queued up but not playing yet, one at a time on a
+ * background thread.  For HLS that's the master playlist, the first variant's media playlist and
+ * its first few segments, for anything else it's the start of the file.
+ *
+ * It can also download items completely, for playing offline, on a second thread at a lower
+ * priority so a long download never holds up warming the next item.  For HLS that's every
+ * segment of the lowest bitrate variant, which is what the player is held to while offline.
+ *
+ * Anything already complete in the cache is skipped, so going round the playlist again costs
+ * nothing but reading playlists from disk.  Only warming that actually goes to the network is
+ * reported to the listener, downloads never are, they wait for the warming to finish instead.
+ */
+public class MediaPrefetcher {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "MediaPrefetcher";
+
+    /**
+     * Told when warming the next items goes to the network and when it is done, on the prefetch
+     * thread
+     */
+    public interface Listener {
+        void onPrefetchStarted();
+
+        void onPrefetchFinished();
+    }
+
+    /**
+     * How much of a progressive file we warm
+     */
+    private static final long PROGRESSIVE_PREFETCH_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Reads through the cache, so whatever we read gets written to it
+     */
+    private final DataSource.Factory cacheDataSourceFactory;
+
+    /**
+     * The cache it reads through, to check what is already there
+     */
+    private final Cache cache;
+
+    /**
+     * How many HLS segments we warm per item
+     */
+    private final int segmentCount;
+
+    /**
+     * Who to tell when we are using the network
+     */
+    private final Listener listener;
+
+    /**
+     * One prefetch at a time so we don't fight the player for bandwidth
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * URLs queued or running, so the same item isn't prefetched twice at once
+     */
+    private final Set<String> pending = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Full downloads, one at a time behind the prefetches
+     */
+    private final ExecutorService downloadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG + "-download");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * URLs queued or running for a full download
+     */
+    private final Set<String> pendingDownloads = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * How many reads warming the next items has on the network, downloads wait until it is 0
+     */
+    private int networkPrefetches = 0;
+
+    /**
+     * Constructor
+     * @param cacheDataSourceFactory Data sources that read through the media cache
+     * @param cache The media cache they read through
+     * @param segmentCount How many HLS segments to warm per item
+     * @param listener Told when warming goes to the network and when it is done, i.e., to
+     *                 share out bandwidth
+     */
+    public MediaPrefetcher(DataSource.Factory cacheDataSourceFactory, Cache cache, int segmentCount,
+                           Listener listener) {
+        this.cacheDataSourceFactory = cacheDataSourceFactory;
+        this.cache = cache;
+        this.segmentCount = segmentCount;
+        this.listener = listener;
+    }
+
+    /**
+     * Queues the media at the URL to be warmed in the background
+     * @param url URL of the media, as given to the player
+     */
+    public void prefetch(final String url) {
+        queue(executor, pending, url, false);
+    }
+
+    /**
+     * Queues the media at the URL to be downloaded completely in the background, so it can play
+     * without a network
+     * @param url URL of the media, as given to the player
+     */
+    public void download(final String url) {
+        queue(downloadExecutor, pendingDownloads, url, true);
+    }
+
+    private void queue(ExecutorService queueExecutor, final Set<String> pending, final String url, final boolean completely) {
+        if (!pending.add(url)) {
+            return;
+        }
+
+        queueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warm(Uri.parse(url), completely);
+                    Log.d(TAG, (completely ? "Downloaded: " : "Prefetched: ") + url);
+                } catch (IOException e) {
+                    // Not the end of the world, the player will just go to the network
+                    Log.w(TAG, "Prefetch failed for " + url + ": " + e.getMessage());
+                } finally {
+                    pending.remove(url);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops prefetching, anything queued is dropped
+     */
+    public void release() {
+        executor.shutdownNow();
+        downloadExecutor.shutdownNow();
+    }
+
+    private void warm(Uri uri, boolean completely) throws IOException {
+        if (Util.inferContentType(uri) != C.TYPE_HLS) {
+            read(new DataSpec(uri, 0, completely ? C.LENGTH_UNSET : PROGRESSIVE_PREFETCH_BYTES, null), null, completely);
+            return;
+        }
+
+        HlsPlaylist playlist = readPlaylist(uri, completely);
+        if (playlist instanceof HlsMasterPlaylist) {
+            HlsMasterPlaylist masterPlaylist = (HlsMasterPlaylist) playlist;
+            if (masterPlaylist.variants.isEmpty()) {
+                return;
+            }
+
+            // The first variant is where HLS players start, the lowest is what plays offline
+            HlsMasterPlaylist.HlsUrl variant = masterPlaylist.variants.get(0);
+            if (completely) {
+                for (HlsMasterPlaylist.HlsUrl candidate : masterPlaylist.variants) {
+                    if (candidate.format.bitrate < variant.format.bitrate) {
+                        variant = candidate;
+                    }
+                }
+            }
+            Uri variantUri = UriUtil.resolveToUri(masterPlaylist.baseUri, variant.url);
+            playlist = readPlaylist(variantUri, completely);
+        }
+
+        if (playlist instanceof HlsMediaPlaylist) {
+            HlsMediaPlaylist mediaPlaylist = (HlsMediaPlaylist) playlist;
+            if (mediaPlaylist.initializationSegment != null) {
+                warmSegment(mediaPlaylist, mediaPlaylist.initializationSegment, completely);
+            }
+            int count = completely ? mediaPlaylist.segments.size() : Math.min(segmentCount, mediaPlaylist.segments.size());
+            for (int i = 0; i < count && !Thread.currentThread().isInterrupted(); i++) {
+                warmSegment(mediaPlaylist, mediaPlaylist.segments.get(i), completely);
+            }
+        }
+    }
+
+    private void warmSegment(HlsMediaPlaylist mediaPlaylist, HlsMediaPlaylist.Segment segment,
+                             boolean download) throws IOException {
+        // Fetched the same way the player's chunk source asks for it, so the cache keys match
+        Uri segmentUri = UriUtil.resolveToUri(mediaPlaylist.baseUri, segment.url);
+        DataSpec dataSpec = new DataSpec(segmentUri, segment.byterangeOffset, segment.byterangeLength, null);
+        if (!isCached(dataSpec)) {
+            read(dataSpec, null, download);
+        }
+    }
+
+    private HlsPlaylist readPlaylist(Uri uri, boolean download) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        read(new DataSpec(uri), out, download);
+        return new HlsPlaylistParser().parse(uri, new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /**
+     * @param dataSpec What we want to read
+     * @return Whether all of it is in the cache already, so reading it needs no network
+     */
+    private boolean isCached(DataSpec dataSpec) {
+        // The key the cache data source files it under
+        String key = dataSpec.key != null ? dataSpec.key : dataSpec.uri.toString();
+        long length = dataSpec.length;
+        if (length == C.LENGTH_UNSET) {
+            long contentLength = cache.getContentLength(key);
+            if (contentLength == C.LENGTH_UNSET) {
+                return false;
+            }
+            length = contentLength - dataSpec.absoluteStreamPosition;
+        }
+        return cache.isCached(key, dataSpec.absoluteStreamPosition, length);
+    }
+
+    /**
+     * Reads the whole data spec through the cache.  Warming that goes to the network is reported
+     * to the listener, a download waits until no warming is on the network.
+     * @param dataSpec What to read
+     * @param out Where to copy the data, null if we only want it cached
+     * @param download Whether it is for a download rather than warming the next items
+     */
+    private void read(DataSpec dataSpec, ByteArrayOutputStream out, boolean download) throws IOException {
+        boolean network = !isCached(dataSpec);
+        if (network && download) {
+            awaitNoPrefetches();
+        } else if (network) {
+            synchronized (this) {
+                networkPrefetches++;
+            }
+            listener.onPrefetchStarted();
+        }
+        try {
+            read(dataSpec, out);
+        } finally {
+            if (network && !download) {
+                listener.onPrefetchFinished();
+                synchronized (this) {
+                    networkPrefetches--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds a download back while warming the next items is on the network, they need the link
+     * more than something that won't play until we are offline
+     * @throws InterruptedIOException We were released while waiting
+     */
+    private synchronized void awaitNoPrefetches() throws InterruptedIOException {
+        while (networkPrefetches > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Released while waiting to download");
+            }
+        }
+    }
+
+    /**
+     * Reads the whole data spec through the cache
+     * @param dataSpec What to read
+     * @param out Where to copy the data, null if we only want it cached
+     */
+    private void read(DataSpec dataSpec, ByteArrayOutputStream out) throws IOException {
+        DataSource dataSource = cacheDataSourceFactory.createDataSource();
+        byte[] buffer = new byte[16 * 1024];
+        try {
+            dataSource.open(dataSpec);
+            int read;
+            while ((read = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        } finally {
+            dataSource.close();
+        }
+    }
+}
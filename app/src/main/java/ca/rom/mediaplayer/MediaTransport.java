@@ -0,0 +1,34 @@
+package ca.rom.mediaplayer;
+
+/**
+ * How a MediaDataService gets its requests to the server and the responses back.  Request
+ * listeners, and then the transport listener, are called on the service's executor.
+ */
+public interface MediaTransport {
+
+    /**
+     * Told when a request is done with, delivered or not
+     */
+    interface Listener {
+        /**
+         * @param request The request that finished
+         */
+        void onRequestFinished(MediaJsonRequest<?> request);
+    }
+
+    /**
+     * @param listener Who to tell when requests finish
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Sends a request, a cancelled request is never delivered
+     * @param request The request
+     */
+    void send(MediaJsonRequest<?> request);
+
+    /**
+     * Cancels everything sent and stops for good, nothing is delivered afterwards
+     */
+    void release();
+}
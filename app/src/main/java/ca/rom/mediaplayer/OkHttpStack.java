@@ -0,0 +1,32 @@
+package ca.rom.mediaplayer;
+
+import com.android.volley.toolbox.HurlStack;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import okhttp3.OkHttpClient;
+import okhttp3.OkUrlFactory;
+
+/**
+ * Lets Volley go through our shared OkHttp client, so API requests reuse the pooled connections,
+ * DNS answers and HTTP/2 sessions the media downloads use.  Everything else is plain HurlStack.
+ */
+public class OkHttpStack extends HurlStack {
+
+    private final OkUrlFactory urlFactory;
+
+    /**
+     * Constructor
+     * @param client The shared client
+     */
+    public OkHttpStack(OkHttpClient client) {
+        this.urlFactory = new OkUrlFactory(client);
+    }
+
+    @Override
+    protected HttpURLConnection createConnection(URL url) throws IOException {
+        return urlFactory.open(url);
+    }
+}
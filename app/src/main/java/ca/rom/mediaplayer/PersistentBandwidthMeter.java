@@ -0,0 +1,154 @@
+package ca.rom.mediaplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+/**
+ * One bandwidth estimate for the whole playlist that survives app restarts.  Every media
+ * download feeds it, so each new item's track selection starts from what the link has been doing
+ * rather than from nothing, and until there are fresh samples it answers with the estimate from
+ * last time.  While the next items are being warmed over the network part of the link is held
+ * back for them, so the player picks a variant it can fetch alongside.  Those are short, and
+ * reads the cache can answer never count.  Offline downloads are never held back for, they wait
+ * for the warming instead.
+ */
+public class PersistentBandwidthMeter implements BandwidthMeter, TransferListener<Object>,
+        MediaPrefetcher.Listener {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "PersistentBandwidth";
+
+    /**
+     * Where the estimate is kept between runs
+     */
+    private static final String PREFERENCES_NAME = "bandwidth";
+
+    private static final String KEY_BITRATE_ESTIMATE = "bitrate_estimate";
+
+    /**
+     * How often at most we write the estimate out
+     */
+    private static final long SAVE_INTERVAL_MS = 10 * 1000;
+
+    /**
+     * Our singleton instance
+     */
+    private static PersistentBandwidthMeter mInstance;
+
+    /**
+     * Does the actual measuring
+     */
+    private final DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
+
+    private final SharedPreferences preferences;
+
+    private final Clock clock;
+
+    /**
+     * How much of the estimate is held back while warming is on the network, from 0 to 1
+     */
+    private final float prefetchReserve;
+
+    /**
+     * The last estimate we saved, or loaded at start up
+     */
+    private long savedEstimate;
+
+    /**
+     * When we last saved the estimate
+     */
+    private long savedAt;
+
+    /**
+     * How many warming reads are on the network right now
+     */
+    private int prefetchesRunning = 0;
+
+    private PersistentBandwidthMeter(Context context, Clock clock) {
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.clock = clock;
+        this.prefetchReserve = context.getResources().getInteger(R.integer.prefetch_bandwidth_reserve_percent) / 100f;
+        this.savedEstimate = preferences.getLong(KEY_BITRATE_ESTIMATE, NO_ESTIMATE);
+        this.savedAt = clock.elapsedRealtime();
+        Log.d(TAG, "Starting from a saved estimate of " + savedEstimate + "bps");
+    }
+
+    /**
+     * Singleton accessor
+     * @param context Any context
+     * @return The shared bandwidth meter
+     */
+    public static synchronized PersistentBandwidthMeter getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new PersistentBandwidthMeter(context.getApplicationContext(), Clock.SYSTEM);
+        }
+        return mInstance;
+    }
+
+    /**
+     * @return The measured estimate, or the saved one until there is a measurement, less what
+     * is held back for warming the next items
+     */
+    @Override
+    public synchronized long getBitrateEstimate() {
+        long estimate = bandwidthMeter.getBitrateEstimate();
+        if (estimate == NO_ESTIMATE) {
+            estimate = savedEstimate;
+        }
+        if (estimate == NO_ESTIMATE || prefetchesRunning == 0) {
+            return estimate;
+        }
+        return (long) (estimate * (1 - prefetchReserve));
+    }
+
+    @Override
+    public void onTransferStart(Object source, DataSpec dataSpec) {
+        bandwidthMeter.onTransferStart(source, dataSpec);
+    }
+
+    @Override
+    public void onBytesTransferred(Object source, int bytesTransferred) {
+        bandwidthMeter.onBytesTransferred(source, bytesTransferred);
+    }
+
+    @Override
+    public void onTransferEnd(Object source) {
+        bandwidthMeter.onTransferEnd(source);
+        maybeSave();
+    }
+
+    @Override
+    public synchronized void onPrefetchStarted() {
+        prefetchesRunning++;
+    }
+
+    @Override
+    public synchronized void onPrefetchFinished() {
+        prefetchesRunning--;
+    }
+
+    /**
+     * Writes the estimate out every so often, apply() does the disk work in the background
+     */
+    private synchronized void maybeSave() {
+        long now = clock.elapsedRealtime();
+        if (now - savedAt < SAVE_INTERVAL_MS) {
+            return;
+        }
+
+        long estimate = bandwidthMeter.getBitrateEstimate();
+        if (estimate == NO_ESTIMATE) {
+            return;
+        }
+        savedEstimate = estimate;
+        savedAt = now;
+        preferences.edit().putLong(KEY_BITRATE_ESTIMATE, estimate).apply();
+    }
+}
@@ -0,0 +1,239 @@
+package ca.rom.mediaplayer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Playback quality of experience numbers from the field: startup latency, rebuffering, gaps
+ * between clips and how long our API requests take.  Timings go into histograms, which are
+ * written to the log and appended to a file in the app's files directory every so often, then
+ * started over.
+ */
+public class PlaybackMetrics {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "PlaybackMetrics";
+
+    /**
+     * From asking for the media list to the first media item going out to listeners
+     */
+    public static final String REFRESH_TO_FIRST_ITEM_MS = "refresh_to_first_item_ms";
+
+    /**
+     * From the first media item being queued to the first video frame on screen
+     */
+    public static final String FIRST_ITEM_TO_FIRST_FRAME_MS = "first_item_to_first_frame_ms";
+
+    /**
+     * How long playback stalled for, one value per stall
+     */
+    public static final String REBUFFER_MS = "rebuffer_ms";
+
+    /**
+     * How long the picture was stuck between one clip and the next, 0 for a gapless transition
+     */
+    public static final String TRANSITION_GAP_MS = "transition_gap_ms";
+
+    /**
+     * From a playback error to the first frame of the item playing in its place, normally the
+     * standby player taking over
+     */
+    public static final String FAILOVER_MS = "failover_ms";
+
+    /**
+     * Media list request round trips
+     */
+    public static final String MEDIA_LIST_REQUEST_MS = "media_list_request_ms";
+
+    /**
+     * Single media item request round trips
+     */
+    public static final String MEDIA_ITEM_REQUEST_MS = "media_item_request_ms";
+
+    /**
+     * Batched media item request round trips
+     */
+    public static final String MEDIA_BATCH_REQUEST_MS = "media_batch_request_ms";
+
+    /**
+     * Where the exports go, under the app's files directory
+     */
+    private static final String METRICS_FILE_NAME = "playback_metrics.log";
+
+    /**
+     * Past this the export file is started over, keeping one old one
+     */
+    private static final long METRICS_FILE_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * Our singleton instance
+     */
+    private static PlaybackMetrics mInstance;
+
+    /**
+     * Histograms by name, in the order they were first recorded to
+     */
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
+    /**
+     * Where the exports go
+     */
+    private final File metricsFile;
+
+    /**
+     * How often to export
+     */
+    private final long exportIntervalMs;
+
+    /**
+     * Writes the exports off the main thread
+     */
+    private final Executor exportExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Schedules the exports
+     */
+    private final Handler exportHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Exports and schedules the next one
+     */
+    private final Runnable exportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            export();
+            exportHandler.postDelayed(this, exportIntervalMs);
+        }
+    };
+
+    private PlaybackMetrics(Context context) {
+        this(new File(context.getFilesDir(), METRICS_FILE_NAME),
+                context.getResources().getInteger(R.integer.metrics_export_seconds) * 1000L);
+    }
+
+    /**
+     * Constructor for metrics of their own, the app shares the one from getInstance
+     * @param metricsFile Where the exports go
+     * @param exportIntervalMs How often to export once started
+     */
+    public PlaybackMetrics(File metricsFile, long exportIntervalMs) {
+        this.metricsFile = metricsFile;
+        this.exportIntervalMs = exportIntervalMs;
+    }
+
+    /**
+     * Singleton accessor
+     * @param context Any context, we only hang on to the files directory
+     * @return The shared metrics
+     */
+    public static synchronized PlaybackMetrics getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new PlaybackMetrics(context.getApplicationContext());
+        }
+        return mInstance;
+    }
+
+    /**
+     * Records a timing, safe to call from any thread
+     * @param name Which histogram, one of the constants above
+     * @param valueMs The timing in milliseconds
+     */
+    public void record(String name, long valueMs) {
+        getHistogram(name).record(valueMs);
+    }
+
+    /**
+     * @param name Which histogram, one of the constants above
+     * @return The histogram, created empty if nothing was recorded to it yet
+     */
+    public Histogram getHistogram(String name) {
+        synchronized (histograms) {
+            Histogram histogram = histograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram();
+                histograms.put(name, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Starts exporting periodically
+     */
+    public void start() {
+        exportHandler.removeCallbacks(exportRunnable);
+        exportHandler.postDelayed(exportRunnable, exportIntervalMs);
+    }
+
+    /**
+     * Stops exporting periodically, whatever was recorded since the last export goes out now
+     */
+    public void stop() {
+        exportHandler.removeCallbacks(exportRunnable);
+        export();
+    }
+
+    /**
+     * Writes out and resets every histogram that has something in it
+     */
+    private void export() {
+        final StringBuilder lines = new StringBuilder();
+        long now = System.currentTimeMillis();
+        synchronized (histograms) {
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                String line = entry.getKey() + " " + histogram;
+                Log.i(TAG, line);
+                lines.append(now).append(' ').append(line).append('\n');
+                histogram.reset();
+            }
+        }
+        if (lines.length() == 0) {
+            return;
+        }
+
+        exportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Keep the file from growing forever
+                if (metricsFile.length() > METRICS_FILE_MAX_BYTES) {
+                    File oldFile = new File(metricsFile.getPath() + ".old");
+                    if (!metricsFile.renameTo(oldFile)) {
+                        Log.w(TAG, "Could not roll over " + metricsFile);
+                    }
+                }
+
+                Writer writer = null;
+                try {
+                    writer = new FileWriter(metricsFile, true);
+                    writer.write(lines.toString());
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not export playback metrics: " + e.getMessage());
+                } finally {
+                    if (writer != null) {
+                        try {
+                            writer.close();
+                        } catch (IOException e) {
+                            // Nothing more we can do
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,240 @@
+package ca.rom.mediaplayer;
+
+import android.util.Log;
+import android.view.Surface;
+
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.PlaybackParameters;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.decoder.DecoderCounters;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.video.VideoRendererEventListener;
+
+/**
+ * Watches the player and records what the viewer sees into the playback metrics: how long the
+ * first frame took, every stall and how long it lasted, the gap between clips, and how long a
+ * failure takes to get a picture up again.  Follows the player over when the standby takes over.  A stall that runs into the next clip, or the
+ * player running off the end of the playlist, counts as a transition gap rather than a rebuffer.
+ */
+public class PlaybackQoeTracker implements Player.EventListener, VideoRendererEventListener {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "PlaybackQoeTracker";
+
+    /**
+     * Not timing anything
+     */
+    private static final long NOT_STARTED = -1;
+
+    private SimpleExoPlayer player;
+
+    private final PlaybackMetrics metrics;
+
+    private final Clock clock;
+
+    /**
+     * When the first media item was queued, until the first frame is rendered
+     */
+    private long firstItemQueuedAt = NOT_STARTED;
+
+    /**
+     * Whether startup has been measured already
+     */
+    private boolean firstFrameRendered = false;
+
+    /**
+     * When the current stall started
+     */
+    private long stallStartedAt = NOT_STARTED;
+
+    /**
+     * When the picture stopped moving for the current clip change
+     */
+    private long transitionStartedAt = NOT_STARTED;
+
+    /**
+     * When the player last failed, until the first frame of whatever replaces the failed clip
+     */
+    private long failoverStartedAt = NOT_STARTED;
+
+    /**
+     * The last playback state we were told about
+     */
+    private int playbackState = Player.STATE_IDLE;
+
+    /**
+     * Constructor
+     * @param player Player to watch, we register ourselves as a listener on it
+     * @param metrics Where the numbers go
+     * @param clock Where the time comes from
+     */
+    public PlaybackQoeTracker(SimpleExoPlayer player, PlaybackMetrics metrics, Clock clock) {
+        this.player = player;
+        this.metrics = metrics;
+        this.clock = clock;
+        player.addListener(this);
+        player.setVideoDebugListener(this);
+    }
+
+    /**
+     * A media item was handed to the player, the first one starts the startup timer
+     */
+    public void onMediaItemQueued() {
+        if (!firstFrameRendered && firstItemQueuedAt == NOT_STARTED) {
+            firstItemQueuedAt = clock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Watches the player that took over instead of the one that failed
+     * @param player The player now playing
+     */
+    public void switchPlayer(SimpleExoPlayer player) {
+        release();
+        this.player = player;
+        player.addListener(this);
+        player.setVideoDebugListener(this);
+        playbackState = player.getPlaybackState();
+    }
+
+    /**
+     * Stops watching the player
+     */
+    public void release() {
+        player.removeListener(this);
+        player.setVideoDebugListener(null);
+    }
+
+    @Override
+    public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+        long now = clock.elapsedRealtime();
+
+        if (playbackState == Player.STATE_READY) {
+            if (stallStartedAt != NOT_STARTED) {
+                Log.d(TAG, "Rebuffered for " + (now - stallStartedAt) + "ms");
+                metrics.record(PlaybackMetrics.REBUFFER_MS, now - stallStartedAt);
+                stallStartedAt = NOT_STARTED;
+            }
+            if (transitionStartedAt != NOT_STARTED) {
+                Log.d(TAG, "Transition gap of " + (now - transitionStartedAt) + "ms");
+                metrics.record(PlaybackMetrics.TRANSITION_GAP_MS, now - transitionStartedAt);
+                transitionStartedAt = NOT_STARTED;
+            }
+        } else if (playbackState == Player.STATE_BUFFERING) {
+            // Only a stall if we were playing, not while starting up or changing clips
+            if (this.playbackState == Player.STATE_READY && transitionStartedAt == NOT_STARTED) {
+                stallStartedAt = now;
+            }
+        } else if (playbackState == Player.STATE_ENDED) {
+            // Ran out of media, the gap lasts until the next clip plays
+            if (transitionStartedAt == NOT_STARTED) {
+                transitionStartedAt = stallStartedAt != NOT_STARTED ? stallStartedAt : now;
+            }
+            stallStartedAt = NOT_STARTED;
+        }
+
+        this.playbackState = playbackState;
+    }
+
+    @Override
+    public void onPositionDiscontinuity() {
+        // Already timing the gap since the playlist ended
+        if (transitionStartedAt != NOT_STARTED) {
+            return;
+        }
+
+        if (stallStartedAt != NOT_STARTED) {
+            // The next clip wasn't ready in time, that stall was the gap between them
+            transitionStartedAt = stallStartedAt;
+            stallStartedAt = NOT_STARTED;
+        } else if (playbackState == Player.STATE_READY) {
+            metrics.record(PlaybackMetrics.TRANSITION_GAP_MS, 0);
+        } else {
+            transitionStartedAt = clock.elapsedRealtime();
+        }
+    }
+
+    @Override
+    public void onRenderedFirstFrame(Surface surface) {
+        if (failoverStartedAt != NOT_STARTED) {
+            long failoverMs = clock.elapsedRealtime() - failoverStartedAt;
+            Log.d(TAG, "Picture back " + failoverMs + "ms after a failure");
+            metrics.record(PlaybackMetrics.FAILOVER_MS, failoverMs);
+            failoverStartedAt = NOT_STARTED;
+        }
+        if (!firstFrameRendered && firstItemQueuedAt != NOT_STARTED) {
+            long startupMs = clock.elapsedRealtime() - firstItemQueuedAt;
+            Log.d(TAG, "First frame " + startupMs + "ms after the first media item");
+            metrics.record(PlaybackMetrics.FIRST_ITEM_TO_FIRST_FRAME_MS, startupMs);
+            firstFrameRendered = true;
+        }
+    }
+
+    @Override
+    public void onPlayerError(ExoPlaybackException error) {
+        // Whatever we were timing isn't going to finish, time how long the picture is gone instead
+        stallStartedAt = NOT_STARTED;
+        transitionStartedAt = NOT_STARTED;
+        failoverStartedAt = clock.elapsedRealtime();
+    }
+
+    @Override
+    public void onTimelineChanged(Timeline timeline, Object manifest) {
+
+    }
+
+    @Override
+    public void onTracksChanged(TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+
+    }
+
+    @Override
+    public void onLoadingChanged(boolean isLoading) {
+
+    }
+
+    @Override
+    public void onRepeatModeChanged(int repeatMode) {
+
+    }
+
+    @Override
+    public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
+
+    }
+
+    @Override
+    public void onVideoEnabled(DecoderCounters counters) {
+
+    }
+
+    @Override
+    public void onVideoDecoderInitialized(String decoderName, long initializedTimestampMs, long initializationDurationMs) {
+
+    }
+
+    @Override
+    public void onVideoInputFormatChanged(Format format) {
+
+    }
+
+    @Override
+    public void onDroppedFrames(int count, long elapsedMs) {
+
+    }
+
+    @Override
+    public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees, float pixelWidthHeightRatio) {
+
+    }
+
+    @Override
+    public void onVideoDisabled(DecoderCounters counters) {
+
+    }
+}
@@ -0,0 +1,519 @@
+package ca.rom.mediaplayer;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.Surface;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.ext.okhttp.OkHttpDataSourceFactory;
+import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.source.ExtractorMediaSource;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.dash.DashMediaSource;
+import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
+import com.google.android.exoplayer2.source.hls.HlsMediaSource;
+import com.google.android.exoplayer2.source.smoothstreaming.DefaultSsChunkSource;
+import com.google.android.exoplayer2.source.smoothstreaming.SsMediaSource;
+import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns playback for as long as the process does: the player, the playlist feeding it and what
+ * the media data service sends it.  Everything here happens on the playback thread, activities
+ * only bind and hand over a surface to draw on, so a configuration change or a relaunched
+ * activity keeps what is buffered and where we are in the media list.  Runs in the foreground so
+ * the system leaves it alone.
+ */
+public class PlaybackService extends Service implements EventStream.Listener<MediaItem>,
+        PlaylistEngine.Listener {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "PlaybackService";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final String NOTIFICATION_CHANNEL_ID = "playback";
+
+    /**
+     * How long a surface going away waits for the player to let go of it
+     */
+    private static final long SURFACE_RELEASE_TIMEOUT_MS = 1000;
+
+    /**
+     * What activities get when they bind
+     */
+    public class LocalBinder extends Binder {
+        /**
+         * @return The service, call it from the main thread
+         */
+        public PlaybackService getService() {
+            return PlaybackService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+
+    /**
+     * Where everything below is touched, and only there
+     */
+    private final PlaybackThreadExecutor playbackExecutor = PlaybackThreadExecutor.getInstance();
+
+    private Handler playbackHandler;
+    private DataSource.Factory mediaDataSourceFactory;
+
+    /**
+     * The player playing, the one on the surface
+     */
+    private SimpleExoPlayer player;
+
+    /**
+     * The player kept paused on the next item, swapped with the playing one when that fails
+     */
+    private SimpleExoPlayer standbyPlayer;
+
+    private PlaylistEngine playlistEngine;
+
+    private MediaPrefetcher mediaPrefetcher;
+
+    private PersistentBandwidthMeter bandwidthMeter;
+
+    private PlaybackQoeTracker qoeTracker;
+
+    /**
+     * One for each player, a track selector only serves one
+     */
+    private final List<DefaultTrackSelector> trackSelectors = new ArrayList<>();
+
+    private MediaDataService mediaDataService;
+
+    /**
+     * Times our part of startup, the media list fetch is already out by the time we get here
+     */
+    private StartupOrchestrator startup;
+
+    /**
+     * The surface the player draws on, null while no activity is showing
+     */
+    private Surface surface;
+
+    /**
+     * Width over height of the video playing, 0 until we know
+     */
+    private volatile float videoAspectRatio = 0;
+
+    /**
+     * Where changes to the video's aspect ratio go, activities size the surface from them and
+     * know the picture is up
+     */
+    private final EventStream<Float> videoAspectRatioStream = new EventStream<>();
+
+    /**
+     * While offline only the lowest variant was downloaded completely, so stick to it
+     */
+    private final EventStream.Listener<Boolean> offlineListener = new EventStream.Listener<Boolean>() {
+        @Override
+        public void onEvent(Boolean offline) {
+            Log.d(TAG, offline ? "Offline, playing the lowest variant" : "Online, adapting again");
+            for (DefaultTrackSelector trackSelector : trackSelectors) {
+                trackSelector.setParameters(trackSelector.getParameters()
+                        .withMaxVideoBitrate(offline ? 1 : Integer.MAX_VALUE));
+            }
+        }
+    };
+
+    /**
+     * Passes the video size on to whoever is showing it, called on the playback thread
+     */
+    private final SimpleExoPlayer.VideoListener videoListener = new SimpleExoPlayer.VideoListener() {
+        @Override
+        public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees, float pixelWidthHeightRatio) {
+            if (width == 0 || height == 0) {
+                return;
+            }
+            videoAspectRatio = width * pixelWidthHeightRatio / height;
+            videoAspectRatioStream.emit(videoAspectRatio);
+        }
+
+        @Override
+        public void onRenderedFirstFrame() {
+
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        Log.d(TAG, "Starting onCreate.");
+        super.onCreate();
+        startForeground(NOTIFICATION_ID, buildNotification());
+        startup = StartupOrchestrator.getInstance(this);
+
+        // The player reports to the thread it is built on, so build it on ours
+        playbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                startPlayback();
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        playbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopPlayback();
+            }
+        });
+        stopForeground(true);
+    }
+
+    /**
+     * Builds the player and starts feeding it, on the playback thread
+     */
+    private void startPlayback() {
+        // One bandwidth estimate for every item, carried over from the last run
+        bandwidthMeter = PersistentBandwidthMeter.getInstance(getApplicationContext());
+
+        // Media sources report to our thread too
+        playbackHandler = new Handler(playbackExecutor.getLooper());
+        mediaDataSourceFactory = buildDataSourceFactory();
+        mediaPrefetcher = new MediaPrefetcher(mediaDataSourceFactory,
+                MediaCache.getInstance(getApplicationContext()),
+                getResources().getInteger(R.integer.media_prefetch_segments), bandwidthMeter);
+
+        // 1. Create the player, and a standby that only buffers enough to start the next item
+        player = buildPlayer(new DefaultLoadControl());
+        player.setVideoListener(videoListener);
+        player.setPlayWhenReady(true);
+        int standbyBufferMs = getResources().getInteger(R.integer.standby_buffer_ms);
+        standbyPlayer = buildPlayer(new DefaultLoadControl(
+                new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE),
+                standbyBufferMs, standbyBufferMs, standbyBufferMs, standbyBufferMs));
+        startup.mark(StartupOrchestrator.PHASE_PLAYER_BUILT);
+
+        // 2. Feed it from a single gapless playlist
+        playlistEngine = new PlaylistEngine(player, standbyPlayer, this,
+                getResources().getInteger(R.integer.media_prepare_ahead));
+
+        // 3. Measure what the viewer sees
+        PlaybackMetrics metrics = PlaybackMetrics.getInstance(getApplicationContext());
+        qoeTracker = new PlaybackQoeTracker(player, metrics, Clock.SYSTEM);
+        metrics.start();
+
+        // Whatever the service got while the app was starting up is held for the first of us
+        Log.d(TAG, "Registering listener on MediaDataService");
+        mediaDataService = MediaDataService.getInstance(getApplicationContext());
+        mediaDataService.addListener(this, playbackExecutor);
+        mediaDataService.addOfflineListener(offlineListener, playbackExecutor);
+        if (mediaDataService.isOffline()) {
+            offlineListener.onEvent(true);
+        }
+
+        // The app started the fetch unless we are being started again, in which case the new
+        // player holds none of what the old one was sent
+        if (!startup.claimFetch()) {
+            mediaDataService.setMediaItemDemand(
+                    1 + getResources().getInteger(R.integer.media_prepare_ahead));
+            mediaDataService.refreshMediaList();
+        }
+    }
+
+    /**
+     * Lets go of the player and everything feeding it, on the playback thread
+     */
+    private void stopPlayback() {
+        // Nothing more is resolved for a player that is going away, the next one asks for its own
+        mediaDataService.setMediaItemDemand(0);
+        mediaDataService.removeListener(this);
+        mediaDataService.removeOfflineListener(offlineListener);
+        mediaPrefetcher.release();
+        qoeTracker.release();
+        player.release();
+        player = null;
+        standbyPlayer.release();
+        standbyPlayer = null;
+        PlaybackMetrics.getInstance(getApplicationContext()).stop();
+    }
+
+    /**
+     * Has the player draw on the surface, call from the main thread once it is created
+     * @param surface The surface
+     */
+    public void setSurface(final Surface surface) {
+        playbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (player != null) {
+                    PlaybackService.this.surface = surface;
+                    player.setVideoSurface(surface);
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes the player off the surface, call from the main thread before it is destroyed.  Waits
+     * for the player to let go of it, the codec can't be left drawing on a dead surface.
+     * @param surface The surface going away
+     */
+    public void clearSurface(final Surface surface) {
+        final CountDownLatch cleared = new CountDownLatch(1);
+        playbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (player != null && PlaybackService.this.surface == surface) {
+                    PlaybackService.this.surface = null;
+                    player.setVideoSurface(null);
+                }
+                cleared.countDown();
+            }
+        });
+
+        try {
+            if (!cleared.await(SURFACE_RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Player didn't let go of the surface in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a listener for the video's aspect ratio, the first one means the picture is up
+     * @param listener Who to tell
+     * @param executor Where to tell them, i.e., MainThreadExecutor
+     */
+    public void addVideoListener(EventStream.Listener<Float> listener, Executor executor) {
+        videoAspectRatioStream.addListener(listener, executor);
+    }
+
+    /**
+     * Stops telling the listener about the video
+     * @param listener Who to stop telling
+     */
+    public void removeVideoListener(EventStream.Listener<Float> listener) {
+        videoAspectRatioStream.removeListener(listener);
+    }
+
+    /**
+     * @return Width over height of the video playing, 0 until there is one, for an activity
+     * that binds after it started
+     */
+    public float getVideoAspectRatio() {
+        return videoAspectRatio;
+    }
+
+    /**
+     * Builds a player, each new item starts from the carried over bandwidth estimate
+     * @param loadControl How much it buffers
+     * @return The player
+     */
+    private SimpleExoPlayer buildPlayer(LoadControl loadControl) {
+        TrackSelection.Factory videoTrackSelectionFactory =
+                new AdaptiveTrackSelection.Factory(bandwidthMeter);
+        DefaultTrackSelector trackSelector = new DefaultTrackSelector(videoTrackSelectionFactory);
+        trackSelectors.add(trackSelector);
+
+        SimpleExoPlayer player = ExoPlayerFactory.newSimpleInstance(getApplicationContext(),
+                trackSelector, loadControl);
+        player.setRepeatMode(Player.REPEAT_MODE_OFF);
+        return player;
+    }
+
+    /**
+     * Builds various media sources based on URI extension, in my experience its always HLS from
+     * the API
+     * @param uri
+     * @param overrideExtension
+     * @return
+     */
+    private MediaSource buildMediaSource(Uri uri, String overrideExtension) {
+        int type = TextUtils.isEmpty(overrideExtension) ? Util.inferContentType(uri)
+                : Util.inferContentType("." + overrideExtension);
+        switch (type) {
+            case C.TYPE_SS:
+                return new SsMediaSource(uri, buildDataSourceFactory(),
+                        new DefaultSsChunkSource.Factory(mediaDataSourceFactory), playbackHandler, null);
+            case C.TYPE_DASH:
+                return new DashMediaSource(uri, buildDataSourceFactory(),
+                        new DefaultDashChunkSource.Factory(mediaDataSourceFactory), playbackHandler, null);
+            case C.TYPE_HLS:
+                return new HlsMediaSource(uri, mediaDataSourceFactory, playbackHandler, null);
+            case C.TYPE_OTHER:
+                return new ExtractorMediaSource(uri, mediaDataSourceFactory, new DefaultExtractorsFactory(),
+                        playbackHandler, null);
+            default: {
+                throw new IllegalStateException("Unsupported type: " + type);
+            }
+        }
+    }
+
+    /**
+     * Returns a new DataSource factory that reads through the on disk media cache, and goes to
+     * the network over the HTTP client shared with the API.  Network reads feed the bandwidth
+     * meter, cache hits don't.
+     *
+     * @return A new DataSource factory.
+     */
+    private DataSource.Factory buildDataSourceFactory() {
+        return MediaCache.buildDataSourceFactory(this,
+                new OkHttpDataSourceFactory(SharedHttpClient.getInstance(this),
+                        SharedHttpClient.USER_AGENT, bandwidthMeter));
+    }
+
+    /**
+     * @return What we show while playing in the foreground
+     */
+    private Notification buildNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                    getString(R.string.playback_notification_channel), NotificationManager.IMPORTANCE_LOW));
+        }
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.playback_notification_text))
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * The media service will call us, on the playback thread, when it has a new video url ready
+     * @param nextMediaItem MediaItem that is next to play
+     */
+    @Override
+    public void onEvent(MediaItem nextMediaItem) {
+        Log.d(TAG, "Update received from MediaDataService.");
+        startup.mark(StartupOrchestrator.PHASE_FIRST_ITEM);
+        addMediaToQueue(nextMediaItem);
+    }
+
+    /**
+     * Queues next video to our media player
+     * @param nextMediaItem The MediaItem to convert to mediasource and queue
+     */
+    private void addMediaToQueue(MediaItem nextMediaItem) {
+        Log.d(TAG, "Adding media list to player");
+
+        // The media list started over, whatever we had lined up is stale
+        if (nextMediaItem.sequenceNumber == 0) {
+            playlistEngine.clearUpcoming();
+        }
+
+        // Create the media
+        MediaSource mediaSource = this.buildMediaSource(Uri.parse(nextMediaItem.url), null);
+
+        // Append it to the playlist, the first one kicks off the player
+        playlistEngine.append(nextMediaItem.url, mediaSource);
+        qoeTracker.onMediaItemQueued();
+    }
+
+    /**
+     * The playlist engine is preparing the media, warm the cache while the items ahead of it play,
+     * and keep a complete copy in the background so it still plays when we go offline.  Both
+     * skip whatever the cache already has, so every pass through the playlist can ask again.
+     * @param url URL of the media
+     */
+    @Override
+    public void onMediaSourcePrepared(String url) {
+        mediaPrefetcher.prefetch(url);
+        if (getResources().getBoolean(R.bool.offline_downloads)) {
+            mediaPrefetcher.download(url);
+        }
+    }
+
+    /**
+     * The playlist engine wants the next item in the standby player too
+     * @param url URL of the media
+     * @return A media source of its own for the standby
+     */
+    @Override
+    public MediaSource buildStandbySource(String url) {
+        return buildMediaSource(Uri.parse(url), null);
+    }
+
+    /**
+     * The playing player failed and the standby took over, it gets the surface and everything
+     * watching the player.  The surface has to come off the failed one first, it can only feed
+     * one codec.
+     * @param failed The player that failed, now the standby
+     * @param takeover The player now playing
+     */
+    @Override
+    public void onPlayerSwapped(SimpleExoPlayer failed, SimpleExoPlayer takeover) {
+        failed.setVideoListener(null);
+        failed.setVideoSurface(null);
+        takeover.setVideoListener(videoListener);
+        takeover.setVideoSurface(surface);
+        qoeTracker.switchPlayer(takeover);
+        player = takeover;
+        standbyPlayer = failed;
+    }
+
+    /**
+     * The playlist engine dropped media that wouldn't play and switched to the next one, have
+     * the service keep the URL out and look the item up again
+     * @param url URL of the media
+     */
+    @Override
+    public void onMediaSourceFailed(String url) {
+        mediaDataService.reportPlaybackFailure(url);
+    }
+
+    /**
+     * The playlist engine let go of media, it has room for as many more media items
+     * @param count How many it let go of
+     */
+    @Override
+    public void onMediaSourcesReleased(int count) {
+        mediaDataService.requestMediaItems(count);
+    }
+
+    /**
+     * The playlist engine played everything it had, go get the list again
+     */
+    @Override
+    public void onPlaylistDrained() {
+        mediaDataService.refreshMediaList();
+    }
+}
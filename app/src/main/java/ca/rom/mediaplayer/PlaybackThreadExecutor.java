@@ -0,0 +1,67 @@
+package ca.rom.mediaplayer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Runs things on the playback thread, the one thread the player, the playlist and the media data
+ * service are driven from.  It lives as long as the process, so nothing on it is lost when an
+ * activity comes and goes.
+ */
+public class PlaybackThreadExecutor implements ServiceExecutor {
+    /**
+     * Our singleton instance
+     */
+    private static PlaybackThreadExecutor mInstance;
+
+    private final Handler handler;
+
+    private PlaybackThreadExecutor() {
+        // Ahead of background work, behind the player's own internal thread
+        HandlerThread thread = new HandlerThread("Playback", Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Singleton accessor, starts the thread the first time
+     * @return The playback thread executor
+     */
+    public static synchronized PlaybackThreadExecutor getInstance() {
+        if (mInstance == null) {
+            mInstance = new PlaybackThreadExecutor();
+        }
+        return mInstance;
+    }
+
+    /**
+     * @return The playback thread's looper, for things that want one, i.e., the player
+     */
+    public Looper getLooper() {
+        return handler.getLooper();
+    }
+
+    /**
+     * @return Whether the calling thread is the playback thread
+     */
+    public boolean isCurrentThread() {
+        return Looper.myLooper() == handler.getLooper();
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    @Override
+    public void executeDelayed(Runnable runnable, long delayMs) {
+        handler.postDelayed(runnable, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        handler.removeCallbacks(runnable);
+    }
+}
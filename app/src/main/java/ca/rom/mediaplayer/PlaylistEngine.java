@@ -0,0 +1,404 @@
+package ca.rom.mediaplayer;
+
+import android.util.Log;
+
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.PlaybackParameters;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.source.DynamicConcatenatingMediaSource;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Gapless playlist on top of a single dynamic concatenating media source.  The player is only
+ * prepared once, every new media source is appended to the end of the playlist so the next item
+ * is already buffering before the current one ends and the renderers are never torn down.
+ *
+ * The concatenating source prepares everything in it straight away, manifests and all, so only
+ * the playing item and the next few are let in.  Those are prepared ahead of playback, so moving
+ * on to the next one as the playing one ends is just a renderer handoff.  The listener is told
+ * every time we let go of media, and only sends as many new items as that, so nothing further
+ * down the media list is built into a media source before playback gets near it.
+ *
+ * A second player is kept as a hot standby for the item after the playing one, prepared with its
+ * own media source and buffered enough to start, but paused and off the surface.  When the
+ * playing item fails the standby takes over: the listener moves the surface over to it, it is
+ * told to play, and the rest of the playlist is appended behind it.  The failed player, which
+ * let go of everything when it stopped, becomes the standby for whatever is next.  Only when the
+ * standby has nothing ready, i.e., it failed too or the playlist was too short to have one, is
+ * the player prepared again from scratch.
+ */
+public class PlaylistEngine implements Player.EventListener {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "PlaylistEngine";
+
+    /**
+     * Told when the player has run off the end of the playlist and wants more media
+     */
+    public interface Listener {
+        void onPlaylistDrained();
+
+        /**
+         * Builds another media source for the URL for the standby player, a media source only
+         * plays in one player at a time
+         * @param url URL of the media
+         * @return A new media source for it
+         */
+        MediaSource buildStandbySource(String url);
+
+        /**
+         * The standby player took over from the one that failed, move the surface and whatever
+         * else is watching the player over to it
+         * @param failed The player that failed, now the standby
+         * @param takeover The player now playing
+         */
+        void onPlayerSwapped(SimpleExoPlayer failed, SimpleExoPlayer takeover);
+
+        /**
+         * A media source went into the playlist and is being prepared, a good time to warm the
+         * cache for it
+         * @param url URL of the media
+         */
+        void onMediaSourcePrepared(String url);
+
+        /**
+         * A media source failed to play and was dropped, playback has moved on to the next one
+         * @param url URL of the media
+         */
+        void onMediaSourceFailed(String url);
+
+        /**
+         * Media sources were let go of, played, failed or dropped, so there is room for as many
+         * new ones.  We hold the playing one and prepareAhead more, so that is all that needs to
+         * be sent our way at any time.
+         * @param count How many were let go of
+         */
+        void onMediaSourcesReleased(int count);
+    }
+
+    /**
+     * A media source waiting for room in the playlist
+     */
+    private static class Entry {
+        final String url;
+        final MediaSource mediaSource;
+
+        Entry(String url, MediaSource mediaSource) {
+            this.url = url;
+            this.mediaSource = mediaSource;
+        }
+    }
+
+    /**
+     * The player we are feeding, swapped with the standby when it fails
+     */
+    private SimpleExoPlayer player;
+
+    /**
+     * The player kept prepared and paused on the item after the playing one
+     */
+    private SimpleExoPlayer standby;
+
+    /**
+     * What the standby is prepared with, the rest of the playlist is appended to it if it takes
+     * over
+     */
+    private DynamicConcatenatingMediaSource standbySource;
+
+    /**
+     * The playlist entry the standby is prepared for, null when it has nothing
+     */
+    private Entry standbyFor;
+
+    /**
+     * The standby's own media source for that entry
+     */
+    private Entry standbyEntry;
+
+    /**
+     * Who to tell when we need more media
+     */
+    private final Listener listener;
+
+    /**
+     * The media source the player is prepared with, only replaced when recovering from an error
+     */
+    private DynamicConcatenatingMediaSource playlistSource = new DynamicConcatenatingMediaSource();
+
+    /**
+     * What is in the playlist source, in the same order, so we know what failed
+     */
+    private final List<Entry> playlist = new ArrayList<>();
+
+    /**
+     * Media sources waiting for room in the playlist, we could have many threads in here so the
+     * queue is synchronized.  Only holds more than a moment's worth when the media list starts
+     * over, the listener sends no more than we have room for.
+     */
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * How many media sources past the playing one are kept prepared
+     */
+    private final int prepareAhead;
+
+    /**
+     * Index in the playlist of the media source playing.  Counted by us from transitions, the
+     * player's window index is for the timeline it last saw, which can still have sources we
+     * already removed.
+     */
+    private int playingIndex = 0;
+
+    /**
+     * The player's window index as of its last event, in the timeline it had then, what the next
+     * transition is counted from
+     */
+    private int lastWindowIndex = 0;
+
+    /**
+     * Whether the player has been prepared with the playlist source yet
+     */
+    private boolean prepared = false;
+
+    /**
+     * Constructor
+     * @param player Player to drive, we register ourselves as a listener on it
+     * @param standby Player to keep prepared on the next item, it takes over if the playing one
+     *                fails
+     * @param listener Told when the playlist runs dry
+     * @param prepareAhead How many media sources past the playing one to keep prepared
+     */
+    public PlaylistEngine(SimpleExoPlayer player, SimpleExoPlayer standby, Listener listener,
+                          int prepareAhead) {
+        this.player = player;
+        this.standby = standby;
+        this.listener = listener;
+        this.prepareAhead = prepareAhead;
+        player.addListener(this);
+    }
+
+    /**
+     * Queues the media source to the end of the playlist, the player is prepared on the first one
+     * @param url URL of the media
+     * @param mediaSource The media source to play after everything already queued
+     */
+    public void append(String url, MediaSource mediaSource) {
+        queue.add(new Entry(url, mediaSource));
+        fillPlaylist();
+
+        // If first one kick off player
+        if (!prepared) {
+            Log.d(TAG, "Preparing player with playlist");
+            player.prepare(playlistSource);
+            prepared = true;
+        }
+    }
+
+    /**
+     * Drops everything queued after the playing media source, prepared or not, i.e., because
+     * the media list started over
+     */
+    public void clearUpcoming() {
+        int released = queue.size();
+        queue.clear();
+        for (int i = playlistSource.getSize() - 1; i > playingIndex; i--) {
+            playlistSource.removeMediaSource(i);
+            playlist.remove(i);
+            released++;
+        }
+        Log.d(TAG, "Cleared upcoming media sources");
+        updateStandby();
+        if (released > 0) {
+            listener.onMediaSourcesReleased(released);
+        }
+    }
+
+    /**
+     * Moves queued media sources into the playlist until it holds the playing one and the next
+     * few.  Played sources are trimmed on every transition so the playing one is normally first.
+     */
+    private void fillPlaylist() {
+        Entry next;
+        while (playlistSource.getSize() < 1 + playingIndex + prepareAhead && (next = queue.poll()) != null) {
+            Log.d(TAG, "Appending to playlist: " + next.url);
+            playlistSource.addMediaSource(next.mediaSource);
+            playlist.add(next);
+            listener.onMediaSourcePrepared(next.url);
+        }
+        updateStandby();
+    }
+
+    /**
+     * Keeps the standby prepared on the item after the playing one, or stops it when there is
+     * none.  It only loads enough to start and stays paused, so it is ready the moment it is
+     * needed.
+     */
+    private void updateStandby() {
+        Entry next = playingIndex + 1 < playlist.size() ? playlist.get(playingIndex + 1) : null;
+        if (next == standbyFor) {
+            return;
+        }
+
+        standbyFor = next;
+        if (next == null) {
+            Log.d(TAG, "Nothing for the standby");
+            standbyEntry = null;
+            standbySource = null;
+            standby.stop();
+            return;
+        }
+
+        Log.d(TAG, "Preparing standby: " + next.url);
+        standbyEntry = new Entry(next.url, listener.buildStandbySource(next.url));
+        standbySource = new DynamicConcatenatingMediaSource();
+        standbySource.addMediaSource(standbyEntry.mediaSource);
+        standby.setPlayWhenReady(false);
+        standby.prepare(standbySource);
+    }
+
+    /**
+     * Drops the media sources we have already played so the playlist doesn't grow forever.  The
+     * removals reach the player later, so this goes by the playing index we count rather than
+     * the player's window index.
+     */
+    private void trimPlayedSources() {
+        int played = playingIndex;
+        for (int i = 0; i < played; i++) {
+            playlistSource.removeMediaSource(0);
+            playlist.remove(0);
+        }
+        playingIndex = 0;
+        if (played > 0) {
+            listener.onMediaSourcesReleased(played);
+        }
+    }
+
+    @Override
+    public void onTimelineChanged(Timeline timeline, Object manifest) {
+        // The player caught up with our changes, its window index moved without a transition
+        lastWindowIndex = player.getCurrentWindowIndex();
+
+        // If we already ran off the end, new media has arrived so jump straight to it
+        if (player.getPlaybackState() == Player.STATE_ENDED &&
+                player.getCurrentWindowIndex() + 1 < timeline.getWindowCount()) {
+            Log.d(TAG, "New media after playlist ended, resuming");
+            player.seekTo(player.getCurrentWindowIndex() + 1, 0);
+        }
+    }
+
+    @Override
+    public void onTracksChanged(TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+
+    }
+
+    @Override
+    public void onLoadingChanged(boolean isLoading) {
+
+    }
+
+    @Override
+    public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+        if (playbackState == Player.STATE_ENDED) {
+            // Maybe we should get more!
+            Log.d(TAG, "Playlist ended");
+            if (queue.isEmpty()) {
+                listener.onPlaylistDrained();
+            } else {
+                fillPlaylist();
+            }
+        }
+    }
+
+    @Override
+    public void onRepeatModeChanged(int repeatMode) {
+
+    }
+
+    @Override
+    public void onPlayerError(ExoPlaybackException error) {
+        // The error doesn't say which source it came from, it is nearly always the playing one
+        int failedIndex = Math.min(playingIndex, playlist.size() - 1);
+        if (failedIndex < 0) {
+            return;
+        }
+        Entry failed = playlist.get(failedIndex);
+        List<Entry> remaining = new ArrayList<>(playlist.subList(failedIndex + 1, playlist.size()));
+        playlist.clear();
+        playingIndex = 0;
+        lastWindowIndex = 0;
+        listener.onMediaSourceFailed(failed.url);
+        listener.onMediaSourcesReleased(failedIndex + 1);
+
+        if (remaining.isEmpty()) {
+            // Nothing to switch to, the next append prepares the player again
+            Log.w(TAG, "Playback failed with nothing after it: " + failed.url, error);
+            playlistSource = new DynamicConcatenatingMediaSource();
+            prepared = false;
+            updateStandby();
+            listener.onPlaylistDrained();
+            return;
+        }
+
+        // A player that failed is idle, the standby is only any use if it hasn't
+        boolean takeover = standbyFor == remaining.get(0) && standby.getPlaybackState() != Player.STATE_IDLE;
+        if (takeover) {
+            Log.w(TAG, "Playback failed, standby taking over: " + failed.url, error);
+            SimpleExoPlayer failedPlayer = player;
+            failedPlayer.removeListener(this);
+            player = standby;
+            standby = failedPlayer;
+            player.addListener(this);
+            listener.onPlayerSwapped(failedPlayer, player);
+            player.setPlayWhenReady(failedPlayer.getPlayWhenReady());
+
+            // It plays its own source for the first item, the rest go in behind it
+            playlistSource = standbySource;
+            playlist.add(standbyEntry);
+            remaining.remove(0);
+            standbyFor = null;
+            standbyEntry = null;
+            standbySource = null;
+        } else {
+            // The player let go of the playlist when it stopped, start a new one from the next item
+            Log.w(TAG, "Playback failed with no standby ready, preparing again: " + failed.url, error);
+            playlistSource = new DynamicConcatenatingMediaSource();
+        }
+        for (Entry entry : remaining) {
+            playlistSource.addMediaSource(entry.mediaSource);
+            playlist.add(entry);
+        }
+        fillPlaylist();
+        if (!takeover) {
+            player.prepare(playlistSource);
+        }
+    }
+
+    @Override
+    public void onPositionDiscontinuity() {
+        // Count how far the player moved in its own timeline, a seek within an item moves nowhere
+        int windowIndex = player.getCurrentWindowIndex();
+        int advanced = windowIndex - lastWindowIndex;
+        lastWindowIndex = windowIndex;
+        if (advanced > 0) {
+            playingIndex = Math.min(playingIndex + advanced, playlist.size() - 1);
+        }
+
+        // Transitioned to the next item, make room for another one ahead of it
+        trimPlayedSources();
+        fillPlaylist();
+    }
+
+    @Override
+    public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
+
+    }
+}
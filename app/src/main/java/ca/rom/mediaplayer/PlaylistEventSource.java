@@ -0,0 +1,317 @@
+package ca.rom.mediaplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Keeps a Server-Sent Events stream open to the media list's events endpoint, so the server can
+ * tell us the moment the list changes instead of us polling for it.  The stream is read on its
+ * own thread and dropped connections are retried with the backoff policy, sending the last event
+ * id we saw so the server can replay anything missed.  The server is expected to send comment
+ * heartbeats so idle proxies don't cut the stream, those are skipped.  Listeners are called on
+ * the executor.
+ */
+public class PlaylistEventSource {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "PlaylistEventSource";
+
+    /**
+     * Told what happens on the stream
+     */
+    public interface Listener {
+        /**
+         * The stream is open, anything from here on will be pushed to us
+         * @param resumed Whether we sent a Last-Event-ID, so the server replays whatever we
+         *                missed since then, or sends an event saying it can't
+         */
+        void onConnected(boolean resumed);
+
+        /**
+         * The server sent an event
+         * @param event The event type, "message" if it didn't say
+         * @param data The event data, lines joined with newlines
+         */
+        void onEvent(String event, String data);
+
+        /**
+         * The stream closed or couldn't be opened, we are trying again
+         */
+        void onDisconnected();
+    }
+
+    /**
+     * Where the stream is, shares the connection pool but never times out a read, the stream is
+     * quiet for as long as the list doesn't change
+     */
+    private final OkHttpClient client;
+
+    private final String url;
+
+    /**
+     * Decides when to try again after the stream drops
+     */
+    private final BackoffPolicy backoffPolicy;
+
+    /**
+     * Where listeners are called
+     */
+    private final Executor executor;
+
+    private Listener listener;
+
+    /**
+     * Reads the stream, null when stopped
+     */
+    private Thread thread;
+
+    /**
+     * The request in flight, so stop can cut it off
+     */
+    private Call call;
+
+    /**
+     * Id of the last event we got, sent as Last-Event-ID when reconnecting
+     */
+    private String lastEventId;
+
+    /**
+     * Constructor
+     * @param client HTTP client to open the stream with, i.e., SharedHttpClient
+     * @param url Where the events are
+     * @param backoffPolicy Decides when to try again after the stream drops
+     * @param executor Where listeners are called
+     */
+    public PlaylistEventSource(OkHttpClient client, String url, BackoffPolicy backoffPolicy, Executor executor) {
+        this.client = client.newBuilder().readTimeout(0, TimeUnit.MILLISECONDS).build();
+        this.url = url;
+        this.backoffPolicy = backoffPolicy;
+        this.executor = executor;
+    }
+
+    /**
+     * @param listener Who to tell what happens on the stream
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Opens the stream, and keeps opening it until stopped
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(Thread.currentThread());
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    /**
+     * Closes the stream for good, no more listener calls are made
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        thread = null;
+        if (call != null) {
+            call.cancel();
+            call = null;
+        }
+    }
+
+    /**
+     * @param current The thread asking
+     * @return Whether the thread is still the one we want running
+     */
+    private synchronized boolean isRunning(Thread current) {
+        return thread == current;
+    }
+
+    /**
+     * Opens the stream and reads it until it drops, then waits out the backoff and does it again
+     * @param current The thread we are on
+     */
+    private void readLoop(Thread current) {
+        int attempt = 1;
+        while (isRunning(current)) {
+            boolean connected = false;
+            try {
+                connected = read(current);
+            } catch (IOException e) {
+                Log.d(TAG, "Event stream dropped: " + e.getMessage());
+            }
+            if (!isRunning(current)) {
+                return;
+            }
+
+            // A stream that worked for a while starts the backoff over
+            if (connected) {
+                attempt = 1;
+            }
+            long delayMs = backoffPolicy.onFailure(attempt++);
+            Log.d(TAG, "Reconnecting to event stream in " + delayMs + "ms");
+            try {
+                Thread.sleep(Math.max(0, delayMs));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads one connection's worth of the stream
+     * @param current The thread we are on
+     * @return Whether the stream was opened at all
+     * @throws IOException The stream couldn't be opened or broke off
+     */
+    private boolean read(Thread current) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .header("Accept", "text/event-stream")
+                .header("Cache-Control", "no-cache");
+        boolean resumed = lastEventId != null;
+        if (resumed) {
+            builder.header("Last-Event-ID", lastEventId);
+        }
+
+        Call call;
+        synchronized (this) {
+            if (thread != current) {
+                return false;
+            }
+            call = this.call = client.newCall(builder.build());
+        }
+
+        Response response = call.execute();
+        try {
+            if (!response.isSuccessful()) {
+                Log.w(TAG, "Event stream refused: " + response.code());
+                return false;
+            }
+
+            Log.d(TAG, "Event stream open: " + url);
+            backoffPolicy.onSuccess();
+            deliverConnected(current, resumed);
+            try {
+                parse(response.body().source(), current);
+            } finally {
+                deliverDisconnected(current);
+            }
+            return true;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Splits the stream into events, following the Server-Sent Events format
+     * @param source The response body
+     * @param current The thread we are on
+     * @throws IOException The stream broke off
+     */
+    private void parse(BufferedSource source, Thread current) throws IOException {
+        String event = null;
+        StringBuilder data = null;
+        String line;
+        while ((line = source.readUtf8Line()) != null && isRunning(current)) {
+            // A blank line ends the event
+            if (line.isEmpty()) {
+                if (data != null) {
+                    deliverEvent(current, event == null ? "message" : event, data.toString());
+                }
+                event = null;
+                data = null;
+                continue;
+            }
+
+            // Comments keep the connection alive, nothing more
+            if (line.startsWith(":")) {
+                continue;
+            }
+
+            int colon = line.indexOf(':');
+            String field = colon < 0 ? line : line.substring(0, colon);
+            String value = colon < 0 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+
+            switch (field) {
+                case "event":
+                    event = value;
+                    break;
+                case "data":
+                    data = data == null ? new StringBuilder(value) : data.append('\n').append(value);
+                    break;
+                case "id":
+                    lastEventId = value;
+                    break;
+                default:
+                    // Including retry, the backoff policy decides that
+                    break;
+            }
+        }
+    }
+
+    private void deliverConnected(final Thread current, final boolean resumed) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = listenerFor(current);
+                if (listener != null) {
+                    listener.onConnected(resumed);
+                }
+            }
+        });
+    }
+
+    private void deliverEvent(final Thread current, final String event, final String data) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = listenerFor(current);
+                if (listener != null) {
+                    listener.onEvent(event, data);
+                }
+            }
+        });
+    }
+
+    private void deliverDisconnected(final Thread current) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = listenerFor(current);
+                if (listener != null) {
+                    listener.onDisconnected();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param current The thread the call came from
+     * @return Who to call, null if we have been stopped since
+     */
+    private synchronized Listener listenerFor(Thread current) {
+        return thread == current ? listener : null;
+    }
+}
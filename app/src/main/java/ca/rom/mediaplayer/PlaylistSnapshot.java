@@ -0,0 +1,45 @@
+package ca.rom.mediaplayer;
+
+import java.util.List;
+
+/**
+ * The media list as we last saw it, with the URLs we had resolved, enough to start playing without
+ * the network
+ */
+public class PlaylistSnapshot {
+    /**
+     * The media items in playback order, those we never resolved have no URL
+     */
+    public final PlaylistView mediaItems;
+
+    /**
+     * ETag of the media list response the snapshot was built from, null if there wasn't one
+     */
+    public final String etag;
+
+    /**
+     * Wall clock time the media list response said it was good until, 0 if it didn't say
+     */
+    public final long expiresAt;
+
+    /**
+     * Constructor
+     * @param mediaItems Media items in playback order, copied so the snapshot can go to
+     *                   another thread
+     * @param etag ETag of the media list response
+     * @param expiresAt Wall clock expiry of the media list response
+     */
+    public PlaylistSnapshot(List<MediaItem> mediaItems, String etag, long expiresAt) {
+        this.mediaItems = CompactPlaylistStore.copyOf(mediaItems);
+        this.etag = etag;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param now Current wall clock time, i.e., Clock.currentTimeMillis()
+     * @return Whether the server would no longer consider the snapshot fresh
+     */
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+}
@@ -0,0 +1,108 @@
+package ca.rom.mediaplayer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the last resolved media list on disk in a small binary format so a cold start can begin
+ * playing straight away
+ */
+public class PlaylistSnapshotStore {
+    /**
+     * Bump whenever the file layout changes, older files are ignored
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Where the snapshot lives
+     */
+    private final File file;
+
+    /**
+     * Constructor
+     * @param file Where the snapshot lives, a temporary file is written next to it
+     */
+    public PlaylistSnapshotStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the snapshot back
+     * @return The snapshot, or null if there isn't a usable one
+     */
+    public PlaylistSnapshot load() {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            String etag = in.readUTF();
+            long expiresAt = in.readLong();
+            int count = in.readInt();
+            CompactPlaylistStore mediaItems = new CompactPlaylistStore(count);
+            for (int i = 0; i < count; i++) {
+                // An empty URL leaves it unresolved
+                int index = mediaItems.append(in.readUTF(), i);
+                mediaItems.setUrl(index, in.readUTF());
+            }
+            return new PlaylistSnapshot(mediaItems, etag.isEmpty() ? null : etag, expiresAt);
+        } catch (IOException e) {
+            // Truncated or corrupt, we'll just have to get a new one
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the snapshot, replacing the old one all at once so a crash can't leave half a file.
+     * Media items we never got a URL for are kept with an empty one, the ETag is for the whole
+     * list so a not modified answer to it has to get the whole list back.
+     * @param snapshot The snapshot to keep
+     * @throws IOException If the file can't be written
+     */
+    public void save(PlaylistSnapshot snapshot) throws IOException {
+        PlaylistView mediaItems = snapshot.mediaItems;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(snapshot.etag == null ? "" : snapshot.etag);
+            out.writeLong(snapshot.expiresAt);
+            out.writeInt(mediaItems.size());
+            for (int i = 0; i < mediaItems.size(); i++) {
+                String url = mediaItems.getUrl(i);
+                out.writeUTF(mediaItems.getId(i));
+                out.writeUTF(url == null ? "" : url);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing useful to do
+            }
+        }
+    }
+}
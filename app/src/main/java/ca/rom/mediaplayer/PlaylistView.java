@@ -0,0 +1,74 @@
+package ca.rom.mediaplayer;
+
+import java.util.List;
+
+/**
+ * Read only access to a media list by index, without needing a MediaItem object for every entry.
+ * Only the entries being worked on, i.e., near the playback cursor, are materialized as
+ * MediaItems, and URLs resolved or failures recorded on those are kept.
+ */
+public interface PlaylistView {
+    /**
+     * @return How many media items are in the list
+     */
+    int size();
+
+    /**
+     * @param index Position in playback order
+     * @return The media item id
+     */
+    String getId(int index);
+
+    /**
+     * @param index Position in playback order
+     * @return The media item sequence number
+     */
+    int getSequenceNumber(int index);
+
+    /**
+     * @param index Position in playback order
+     * @return The media URL, null if it isn't resolved
+     */
+    String getUrl(int index);
+
+    /**
+     * @param index Position in playback order
+     * @return Whether we gave up on resolving it
+     */
+    boolean isFailed(int index);
+
+    /**
+     * @param index Position in playback order
+     * @return A hash of the id that is the same for the same id in any list
+     */
+    int getIdHash(int index);
+
+    /**
+     * Compares ids without building strings for them
+     * @param index Position in this list
+     * @param other Another list, or this one
+     * @param otherIndex Position in the other list
+     * @return Whether both entries have the same id
+     */
+    boolean hasSameId(int index, PlaylistView other, int otherIndex);
+
+    /**
+     * Materializes a media item, the same object comes back while it stays in the window
+     * @param index Position in playback order
+     * @return The media item, set its URL or failed flag to update the list
+     */
+    MediaItem get(int index);
+
+    /**
+     * Lets go of the media item objects outside the window, whatever was set on them is folded
+     * back into the list first.  Doesn't change what is in the list.
+     * @param from First index to keep as an object
+     * @param to Index after the last one to keep as an object
+     */
+    void retainWindow(int from, int to);
+
+    /**
+     * @return The list as MediaItems, each materialized as it is asked for
+     */
+    List<MediaItem> asList();
+}
@@ -0,0 +1,235 @@
+package ca.rom.mediaplayer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which requests go out to the network and when.  Every request is put in a lane by how
+ * much playback depends on it, each lane has its own limit on requests in flight, and queued
+ * requests go out highest lane first.  Since the lanes don't share their limits a request for
+ * the next item to play never waits behind a lookahead lookup or a background refresh.
+ *
+ * Knows nothing about HTTP or threads, the caller does the requests and calls in from one
+ * thread, i.e., the playback thread Volley delivers on.
+ * @param <R> The requests
+ */
+public class RequestScheduler<R> {
+
+    /**
+     * How much playback depends on a request, highest first
+     */
+    public enum Lane {
+        /**
+         * Nothing more plays until it is done, i.e., the next media item or a list we have nothing of
+         */
+        NEXT,
+        /**
+         * Media items further down the list
+         */
+        LOOKAHEAD,
+        /**
+         * Checking for changes while we have something to play
+         */
+        BACKGROUND
+    }
+
+    /**
+     * Does the actual requests
+     * @param <R> The requests
+     */
+    public interface Dispatcher<R> {
+        /**
+         * Sends a request, call onFinished when it is done
+         * @param request The request
+         * @param lane The lane it went out in, i.e., for the network's own priorities
+         */
+        void dispatch(R request, Lane lane);
+
+        /**
+         * Stops a request that went out, onFinished doesn't need calling for it
+         * @param request The request
+         */
+        void cancel(R request);
+    }
+
+    /**
+     * A request and what it is for
+     */
+    private static class Entry<R> {
+        final R request;
+        final Object tag;
+        Lane lane;
+
+        Entry(R request, Object tag, Lane lane) {
+            this.request = request;
+            this.tag = tag;
+            this.lane = lane;
+        }
+    }
+
+    private final Dispatcher<R> dispatcher;
+
+    /**
+     * How many requests each lane can have in flight
+     */
+    private final Map<Lane, Integer> limits = new EnumMap<>(Lane.class);
+
+    /**
+     * Requests waiting for room in their lane, oldest first
+     */
+    private final Map<Lane, ArrayDeque<Entry<R>>> queued = new EnumMap<>(Lane.class);
+
+    /**
+     * Requests that went out, and the lane they count against
+     */
+    private final Map<R, Entry<R>> inFlight = new LinkedHashMap<>();
+
+    /**
+     * Constructor
+     * @param dispatcher Does the actual requests
+     * @param nextLimit How many requests the next lane can have in flight
+     * @param lookaheadLimit How many requests the lookahead lane can have in flight
+     * @param backgroundLimit How many requests the background lane can have in flight
+     */
+    public RequestScheduler(Dispatcher<R> dispatcher, int nextLimit, int lookaheadLimit, int backgroundLimit) {
+        this.dispatcher = dispatcher;
+        limits.put(Lane.NEXT, nextLimit);
+        limits.put(Lane.LOOKAHEAD, lookaheadLimit);
+        limits.put(Lane.BACKGROUND, backgroundLimit);
+        for (Lane lane : Lane.values()) {
+            queued.put(lane, new ArrayDeque<Entry<R>>());
+        }
+    }
+
+    /**
+     * @return How many requests can be in flight across every lane
+     */
+    public int getMaxInFlight() {
+        int maxInFlight = 0;
+        for (int limit : limits.values()) {
+            maxInFlight += limit;
+        }
+        return maxInFlight;
+    }
+
+    /**
+     * Sends the request now if its lane has room, otherwise queues it
+     * @param request The request
+     * @param lane How much playback depends on it
+     * @param tag What it is for, so it can be promoted later, null for nothing
+     */
+    public void submit(R request, Lane lane, Object tag) {
+        queued.get(lane).add(new Entry<>(request, tag, lane));
+        dispatchQueued();
+    }
+
+    /**
+     * Moves requests for the tag up to the next lane, i.e., the item they look up is now the
+     * next one to play.  Requests already in flight carry on where they are.
+     * @param tag What the requests are for
+     */
+    public void promote(Object tag) {
+        if (tag == null) {
+            return;
+        }
+
+        List<Entry<R>> promoted = new ArrayList<>();
+        for (Lane lane : Lane.values()) {
+            if (lane == Lane.NEXT) {
+                continue;
+            }
+            Iterator<Entry<R>> iterator = queued.get(lane).iterator();
+            while (iterator.hasNext()) {
+                Entry<R> entry = iterator.next();
+                if (tag.equals(entry.tag)) {
+                    iterator.remove();
+                    entry.lane = Lane.NEXT;
+                    promoted.add(entry);
+                }
+            }
+        }
+        if (promoted.isEmpty()) {
+            return;
+        }
+
+        // Ahead of everything else waiting, nothing is more urgent
+        ArrayDeque<Entry<R>> next = queued.get(Lane.NEXT);
+        for (int i = promoted.size() - 1; i >= 0; i--) {
+            next.addFirst(promoted.get(i));
+        }
+        dispatchQueued();
+    }
+
+    /**
+     * Drops everything queued in the lanes and cancels what they have in flight, i.e., the media
+     * list changed and the lookups are for items that are gone
+     * @param lanes Which lanes
+     */
+    public void cancel(Lane... lanes) {
+        for (Lane lane : lanes) {
+            queued.get(lane).clear();
+
+            Iterator<Entry<R>> iterator = inFlight.values().iterator();
+            while (iterator.hasNext()) {
+                Entry<R> entry = iterator.next();
+                if (entry.lane == lane) {
+                    iterator.remove();
+                    dispatcher.cancel(entry.request);
+                }
+            }
+        }
+        dispatchQueued();
+    }
+
+    /**
+     * A request finished, good or bad, so make room in its lane.  Requests we don't know about,
+     * i.e., ones that were cancelled, are ignored.
+     * @param request The request
+     */
+    public void onFinished(R request) {
+        if (inFlight.remove(request) != null) {
+            dispatchQueued();
+        }
+    }
+
+    /**
+     * @param lane Which lane
+     * @return How many requests the lane has in flight
+     */
+    public int getInFlight(Lane lane) {
+        int count = 0;
+        for (Entry<R> entry : inFlight.values()) {
+            if (entry.lane == lane) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param lane Which lane
+     * @return How many requests are waiting for room in the lane
+     */
+    public int getQueued(Lane lane) {
+        return queued.get(lane).size();
+    }
+
+    /**
+     * Sends whatever there is room for, highest lane first
+     */
+    private void dispatchQueued() {
+        for (Lane lane : Lane.values()) {
+            ArrayDeque<Entry<R>> waiting = queued.get(lane);
+            while (!waiting.isEmpty() && getInFlight(lane) < limits.get(lane)) {
+                Entry<R> entry = waiting.poll();
+                inFlight.put(entry.request, entry);
+                dispatcher.dispatch(entry.request, lane);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package ca.rom.mediaplayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of which media items of the media list are being resolved and which are ready to
+ * go out.  Only the next few items past the cursor are asked for at once, and items are let out
+ * strictly in playback order even though the responses can come back in any order.
+ *
+ * Every slot sent for resolving gets a deadline.  If the slot at the head still isn't resolved
+ * by then it is skipped, so one slow or broken item can't hold back the ready ones behind it.
+ *
+ * Knows nothing about HTTP or threads, the caller does the requests and calls in from one
+ * thread, i.e., the playback thread Volley delivers on.
+ */
+public class ResolveWindow {
+
+    /**
+     * Does the actual lookups
+     */
+    public interface Resolver {
+        /**
+         * Looks up a single media item, call onResolveFinished when it is done
+         * @param mediaItem The media item to fill in
+         */
+        void resolve(MediaItem mediaItem);
+
+        /**
+         * Looks up a group of media items in one request, call onResolveFinished when it is done
+         * @param mediaItems The media items to fill in
+         */
+        void resolveBatch(List<MediaItem> mediaItems);
+    }
+
+    /**
+     * How many lookups can be out at once, also how far past the cursor we look, in batches when
+     * batching
+     */
+    private final int resolveAhead;
+
+    /**
+     * How many ids go in a single batch lookup
+     */
+    private final int batchSize;
+
+    /**
+     * Whether to look up in batches
+     */
+    private boolean batchSupported = false;
+
+    /**
+     * The media list in playback order
+     */
+    private List<MediaItem> mediaItems = Collections.emptyList();
+
+    /**
+     * The index of the next media item to let out
+     */
+    private int cursor = 0;
+
+    /**
+     * The index of the next media item to look up
+     */
+    private int nextResolveIndex = 0;
+
+    /**
+     * How many lookups are out
+     */
+    private int resolvesInFlight = 0;
+
+    /**
+     * Where the time for deadlines comes from
+     */
+    private final Clock clock;
+
+    /**
+     * How long a slot has to be resolved once we ask for it
+     */
+    private final long slotTimeoutMs;
+
+    /**
+     * When each slot sent for resolving has to be ready by, keyed on sequence number.  Only the
+     * slots in the window are in here.
+     */
+    private final Map<Integer, Long> deadlines = new HashMap<>();
+
+    /**
+     * Constructor
+     * @param resolveAhead How many lookups can be out at once
+     * @param batchSize How many ids go in a single batch lookup
+     * @param clock Where the time for deadlines comes from
+     * @param slotTimeoutMs How long a slot has to be resolved once we ask for it
+     */
+    public ResolveWindow(int resolveAhead, int batchSize, Clock clock, long slotTimeoutMs) {
+        this.resolveAhead = resolveAhead;
+        this.batchSize = batchSize;
+        this.clock = clock;
+        this.slotTimeoutMs = slotTimeoutMs;
+    }
+
+    /**
+     * Starts over on a media list, anything still out for the old one should be ignored by the
+     * caller when it comes back
+     * @param mediaItems The media list in playback order, null for none
+     * @param cursor The index of the next media item to let out
+     */
+    public void reset(List<MediaItem> mediaItems, int cursor) {
+        this.mediaItems = mediaItems != null ? mediaItems : Collections.<MediaItem>emptyList();
+        this.cursor = cursor;
+        this.nextResolveIndex = cursor;
+        this.resolvesInFlight = 0;
+        this.deadlines.clear();
+    }
+
+    public void setBatchSupported(boolean batchSupported) {
+        this.batchSupported = batchSupported;
+    }
+
+    public boolean isBatchSupported() {
+        return batchSupported;
+    }
+
+    /**
+     * @return The index of the next media item to let out
+     */
+    public int getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return How far past the cursor lookups can reach, every media item being looked up is
+     * within this many of it, batched or not.  The last batch can start just inside the window.
+     */
+    public int getReach() {
+        return (resolveAhead + 1) * Math.max(batchSize, 1);
+    }
+
+    /**
+     * @return Whether every media item has been let out or skipped
+     */
+    public boolean isDrained() {
+        return cursor >= mediaItems.size();
+    }
+
+    /**
+     * Starts as many lookups as the window has room for, items that already have a URL are
+     * skipped
+     * @param resolver Does the lookups
+     */
+    public void resolveAhead(Resolver resolver) {
+        if (batchSupported) {
+            // The window is counted in batches rather than items
+            while (resolvesInFlight < resolveAhead &&
+                    nextResolveIndex < mediaItems.size() &&
+                    nextResolveIndex < cursor + resolveAhead * batchSize) {
+                int end = Math.min(nextResolveIndex + batchSize, mediaItems.size());
+                List<MediaItem> unresolved = new ArrayList<>();
+                for (MediaItem mediaItem : mediaItems.subList(nextResolveIndex, end)) {
+                    if (mediaItem.url == null) {
+                        unresolved.add(mediaItem);
+                    }
+                }
+                nextResolveIndex = end;
+                if (!unresolved.isEmpty()) {
+                    startDeadlines(unresolved);
+                    resolvesInFlight++;
+                    resolver.resolveBatch(unresolved);
+                }
+            }
+            return;
+        }
+
+        while (resolvesInFlight < resolveAhead &&
+                nextResolveIndex < mediaItems.size() &&
+                nextResolveIndex < cursor + resolveAhead) {
+            MediaItem mediaItem = mediaItems.get(nextResolveIndex++);
+
+            // Already known from the last time round
+            if (mediaItem.url != null) {
+                continue;
+            }
+            startDeadlines(Collections.singletonList(mediaItem));
+            resolvesInFlight++;
+            resolver.resolve(mediaItem);
+        }
+    }
+
+    private void startDeadlines(List<MediaItem> mediaItems) {
+        long deadline = clock.elapsedRealtime() + slotTimeoutMs;
+        for (MediaItem mediaItem : mediaItems) {
+            deadlines.put(mediaItem.sequenceNumber, deadline);
+        }
+    }
+
+    /**
+     * A lookup was started outside of resolveAhead, i.e., the single lookups a failed batch
+     * falls back to
+     */
+    public void onResolveStarted() {
+        resolvesInFlight++;
+    }
+
+    /**
+     * A lookup finished, good or bad, so make room for the next one
+     * @param resolver Does the lookups
+     */
+    public void onResolveFinished(Resolver resolver) {
+        resolvesInFlight--;
+        resolveAhead(resolver);
+    }
+
+    /**
+     * Lets out the next media item if it is ready, failed items and items past their deadline
+     * are skipped over
+     * @return The next media item in playback order, or null if it isn't resolved yet or we
+     * are at the end
+     */
+    public MediaItem pollReady() {
+        while (cursor < mediaItems.size()) {
+            MediaItem mediaItem = mediaItems.get(cursor);
+
+            if (mediaItem != null && mediaItem.url != null && !mediaItem.url.isEmpty()) {
+                deadlines.remove(mediaItem.sequenceNumber);
+                cursor++;
+                return mediaItem;
+            }
+
+            // Nothing will ever come for this one, skip over it
+            if (mediaItem == null || mediaItem.failed) {
+                if (mediaItem != null) {
+                    deadlines.remove(mediaItem.sequenceNumber);
+                }
+                cursor++;
+                continue;
+            }
+
+            // Took too long, give up on it so the ones behind can go
+            Long deadline = deadlines.get(mediaItem.sequenceNumber);
+            if (deadline != null && clock.elapsedRealtime() >= deadline) {
+                deadlines.remove(mediaItem.sequenceNumber);
+                mediaItem.failed = true;
+                cursor++;
+                continue;
+            }
+
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * @return When the slot at the head has to be ready by, so the caller can come back and
+     * skip it, or -1 if it has no deadline
+     */
+    public long getHeadDeadline() {
+        if (cursor >= mediaItems.size() || mediaItems.get(cursor) == null) {
+            return -1;
+        }
+        Long deadline = deadlines.get(mediaItems.get(cursor).sequenceNumber);
+        return deadline != null ? deadline : -1;
+    }
+}
@@ -0,0 +1,23 @@
+package ca.rom.mediaplayer;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A serial executor that can also run things later, what a service with no locking of its own
+ * runs on.  On Android that is a Handler, i.e., PlaybackThreadExecutor, on the JVM whatever the test
+ * wants.
+ */
+public interface ServiceExecutor extends Executor {
+    /**
+     * Runs a task after a delay, in order with everything else
+     * @param runnable What to run
+     * @param delayMs How long to wait first
+     */
+    void executeDelayed(Runnable runnable, long delayMs);
+
+    /**
+     * Drops every pending run of the task
+     * @param runnable What not to run
+     */
+    void cancel(Runnable runnable);
+}
@@ -0,0 +1,82 @@
+package ca.rom.mediaplayer;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * The one HTTP client the API requests and the media downloads all go through.  Sharing it means
+ * sharing its connection pool, so requests to the same backend or CDN reuse kept alive
+ * connections, and over TLS multiplex onto one HTTP/2 connection, instead of each paying for its
+ * own handshakes.  DNS answers are cached, and OkHttp asks for gzip and unzips responses that
+ * aren't ranged, which covers our JSON.
+ */
+public class SharedHttpClient {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "SharedHttpClient";
+
+    /**
+     * What we call ourselves to the servers
+     */
+    public static final String USER_AGENT = "ROMMediaPlayer";
+
+    /**
+     * Our singleton instance
+     */
+    private static OkHttpClient mClient;
+
+    /**
+     * DNS cache of our singleton instance
+     */
+    private static CachingDns mDns;
+
+    private SharedHttpClient() {
+    }
+
+    /**
+     * Singleton accessor
+     * @param context Any context, we only read our settings from it
+     * @return The shared HTTP client
+     */
+    public static synchronized OkHttpClient getInstance(Context context) {
+        if (mClient == null) {
+            Resources resources = context.getResources();
+            int maxIdleConnections = resources.getInteger(R.integer.http_max_idle_connections);
+            int keepAliveSeconds = resources.getInteger(R.integer.http_keep_alive_seconds);
+            Log.d(TAG, "Creating HTTP client keeping " + maxIdleConnections +
+                    " idle connections for " + keepAliveSeconds + "s");
+
+            mDns = new CachingDns(Dns.SYSTEM, Clock.SYSTEM,
+                    resources.getInteger(R.integer.http_dns_cache_seconds) * 1000L);
+            mClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .dns(mDns)
+                    .connectTimeout(resources.getInteger(R.integer.http_connect_timeout_seconds), TimeUnit.SECONDS)
+                    .readTimeout(resources.getInteger(R.integer.http_read_timeout_seconds), TimeUnit.SECONDS)
+                    .build();
+        }
+        return mClient;
+    }
+
+    /**
+     * The network changed, old DNS answers and pooled connections may point the wrong way
+     */
+    public static synchronized void onNetworkChanged() {
+        if (mClient == null) {
+            return;
+        }
+        mDns.clear();
+        mClient.connectionPool().evictAll();
+    }
+}
@@ -0,0 +1,100 @@
+package ca.rom.mediaplayer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lets callers asking for the same thing at the same time share one request.  The first caller
+ * for a key does the request and reports back, everyone who asks before then just waits for that
+ * result.  Once it is in the next caller starts afresh.
+ *
+ * Knows nothing about HTTP or threads, the caller does the requests and calls in from one
+ * thread, i.e., the playback thread Volley delivers on.
+ * @param <K> What a request is for, i.e., its URL
+ * @param <V> What a request comes back with
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * Told how the shared request went
+     * @param <V> What a request comes back with
+     */
+    public interface Callback<V> {
+        void onSuccess(V value);
+
+        void onFailure(Exception error);
+    }
+
+    /**
+     * Who is waiting on each request in flight, the caller that started it first
+     */
+    private final Map<K, List<Callback<V>>> inFlight = new HashMap<>();
+
+    /**
+     * Waits on the request for the key, starting it if there isn't one
+     * @param key What the request is for
+     * @param callback Told how it went
+     * @return Whether the caller has to do the request, false if one is already in flight
+     */
+    public boolean join(K key, Callback<V> callback) {
+        List<Callback<V>> waiting = inFlight.get(key);
+        if (waiting != null) {
+            waiting.add(callback);
+            return false;
+        }
+
+        waiting = new ArrayList<>();
+        waiting.add(callback);
+        inFlight.put(key, waiting);
+        return true;
+    }
+
+    /**
+     * The request worked, tells everyone waiting on it in the order they joined
+     * @param key What the request was for
+     * @param value What it came back with
+     */
+    public void succeed(K key, V value) {
+        List<Callback<V>> waiting = inFlight.remove(key);
+        if (waiting == null) {
+            return;
+        }
+        for (Callback<V> callback : waiting) {
+            callback.onSuccess(value);
+        }
+    }
+
+    /**
+     * The request failed, tells everyone waiting on it in the order they joined
+     * @param key What the request was for
+     * @param error What went wrong
+     */
+    public void fail(K key, Exception error) {
+        List<Callback<V>> waiting = inFlight.remove(key);
+        if (waiting == null) {
+            return;
+        }
+        for (Callback<V> callback : waiting) {
+            callback.onFailure(error);
+        }
+    }
+
+    /**
+     * Forgets every request in flight without telling anyone, i.e., they were cancelled.  If one
+     * reports back anyway nobody is waiting on it.
+     */
+    public void clear() {
+        inFlight.clear();
+    }
+
+    /**
+     * @param key What a request is for
+     * @return How many callers are waiting on it, 0 if it isn't in flight
+     */
+    public int getWaiting(K key) {
+        List<Callback<V>> waiting = inFlight.get(key);
+        return waiting == null ? 0 : waiting.size();
+    }
+}
@@ -0,0 +1,165 @@
+package ca.rom.mediaplayer;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.exoplayer2.mediacodec.MediaCodecUtil;
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Gets a cold start going as early as the process does.  The media list fetch goes out first,
+ * from the application, so its round trips overlap with everything else.  Opening the media
+ * cache, querying the codecs and loading the bandwidth estimate happen on a background thread
+ * while the activity inflates its views and the playback service builds the player, whatever
+ * those need before the warm up finishes they wait for rather than doing twice.  Each phase is
+ * timed from process start.
+ */
+public class StartupOrchestrator {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "StartupOrchestrator";
+
+    /**
+     * Phases we time, each is recorded as startup_[phase]_ms from when start was called
+     */
+    public static final String PHASE_FETCH_STARTED = "fetch_started";
+
+    public static final String PHASE_CACHE_OPENED = "cache_opened";
+
+    public static final String PHASE_CODECS_READY = "codecs_ready";
+
+    public static final String PHASE_WARM_UP_DONE = "warm_up_done";
+
+    public static final String PHASE_LAYOUT_INFLATED = "layout_inflated";
+
+    public static final String PHASE_PLAYER_BUILT = "player_built";
+
+    public static final String PHASE_FIRST_ITEM = "first_item";
+
+    /**
+     * Our singleton instance
+     */
+    private static StartupOrchestrator mInstance;
+
+    private final Context context;
+
+    private final Clock clock;
+
+    private final PlaybackMetrics metrics;
+
+    /**
+     * Does the warm up off the main thread
+     */
+    private final Executor warmUpExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Phases already recorded, each is only timed the first time through
+     */
+    private final Set<String> marked = new HashSet<>();
+
+    /**
+     * When start was called, -1 if it wasn't
+     */
+    private long startedAt = -1;
+
+    /**
+     * Whether the media list fetch we started is still waiting for the playback service to take it
+     */
+    private boolean fetchUnclaimed = false;
+
+    private StartupOrchestrator(Context context, Clock clock) {
+        this.context = context;
+        this.clock = clock;
+        this.metrics = PlaybackMetrics.getInstance(context);
+    }
+
+    /**
+     * Singleton accessor
+     * @param context Any context
+     * @return The shared orchestrator
+     */
+    public static synchronized StartupOrchestrator getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new StartupOrchestrator(context.getApplicationContext(), Clock.SYSTEM);
+        }
+        return mInstance;
+    }
+
+    /**
+     * Starts fetching the media list and warming up playback, call on the main thread as early
+     * as possible, i.e., from the application
+     */
+    public void start() {
+        synchronized (this) {
+            if (startedAt >= 0) {
+                return;
+            }
+            startedAt = clock.elapsedRealtime();
+            fetchUnclaimed = true;
+        }
+
+        // Network first, everything else can happen while we wait on it
+        final MediaDataService mediaDataService = MediaDataService.getInstance(context);
+        PlaybackThreadExecutor.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                mediaDataService.refreshMediaList();
+                mark(PHASE_FETCH_STARTED);
+            }
+        });
+
+        warmUpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Reads the whole cache index from disk
+                MediaCache.getInstance(context);
+                mark(PHASE_CACHE_OPENED);
+
+                // The codec list is queried once and kept, slow on low end boxes
+                try {
+                    MediaCodecUtil.getDecoderInfo(MimeTypes.VIDEO_H264, false);
+                    MediaCodecUtil.getDecoderInfo(MimeTypes.AUDIO_AAC, false);
+                } catch (MediaCodecUtil.DecoderQueryException e) {
+                    Log.w(TAG, "Could not query codecs: " + e.getMessage());
+                }
+                mark(PHASE_CODECS_READY);
+
+                PersistentBandwidthMeter.getInstance(context);
+                mark(PHASE_WARM_UP_DONE);
+            }
+        });
+    }
+
+    /**
+     * Takes over the media list fetch started with the app, so the playback service doesn't
+     * start another.  Only the first one gets it, a service started again starts its own.
+     * @return Whether there was a fetch to take over
+     */
+    public synchronized boolean claimFetch() {
+        boolean claimed = fetchUnclaimed;
+        fetchUnclaimed = false;
+        return claimed;
+    }
+
+    /**
+     * Records how far into startup a phase was reached, only the first time it is
+     * @param phase One of the phases above
+     */
+    public void mark(String phase) {
+        long elapsedMs;
+        synchronized (this) {
+            if (startedAt < 0 || !marked.add(phase)) {
+                return;
+            }
+            elapsedMs = clock.elapsedRealtime() - startedAt;
+        }
+        Log.d(TAG, "Startup reached " + phase + " after " + elapsedMs + "ms");
+        metrics.record("startup_" + phase + "_ms", elapsedMs);
+    }
+}
@@ -0,0 +1,80 @@
+package ca.rom.mediaplayer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Media URLs that failed to play, kept out of the playlist for a while.  Once the time is up the
+ * URL gets another chance, a broken CDN edge or variant is usually fixed by then.
+ */
+public class UrlQuarantine {
+
+    private final Clock clock;
+
+    /**
+     * How long a URL is kept out
+     */
+    private final long ttlMs;
+
+    /**
+     * When each quarantined URL is let back in
+     */
+    private final Map<String, Long> releasedAt = new HashMap<>();
+
+    /**
+     * Constructor
+     * @param clock Where the time comes from
+     * @param ttlMs How long a URL is kept out
+     */
+    public UrlQuarantine(Clock clock, long ttlMs) {
+        this.clock = clock;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Keeps the URL out for the next while, starting over if it already was
+     * @param url The URL that failed
+     */
+    public synchronized void add(String url) {
+        prune();
+        releasedAt.put(url, clock.elapsedRealtime() + ttlMs);
+    }
+
+    /**
+     * @param url A media URL, may be null
+     * @return Whether the URL failed recently enough to still be kept out
+     */
+    public synchronized boolean contains(String url) {
+        Long until = releasedAt.get(url);
+        if (until == null) {
+            return false;
+        }
+        if (clock.elapsedRealtime() >= until) {
+            releasedAt.remove(url);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return How many URLs are kept out right now
+     */
+    public synchronized int size() {
+        prune();
+        return releasedAt.size();
+    }
+
+    /**
+     * Lets back in every URL whose time is up, so the map doesn't grow forever
+     */
+    private void prune() {
+        long now = clock.elapsedRealtime();
+        Iterator<Long> iterator = releasedAt.values().iterator();
+        while (iterator.hasNext()) {
+            if (now >= iterator.next()) {
+                iterator.remove();
+            }
+        }
+    }
+}
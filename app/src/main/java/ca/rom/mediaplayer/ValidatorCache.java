@@ -0,0 +1,88 @@
+package ca.rom.mediaplayer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the ETag and Last-Modified validators we last got for each URL, along with what we
+ * made of that response, so the next request can be conditional and a 304 can skip parsing
+ * altogether.  Least recently used entries are dropped once it is full.
+ */
+public class ValidatorCache {
+
+    /**
+     * Validators and the value we built from one response
+     */
+    public static class Entry {
+        /**
+         * ETag header, null if there wasn't one
+         */
+        public final String etag;
+
+        /**
+         * Last-Modified header, null if there wasn't one
+         */
+        public final String lastModified;
+
+        /**
+         * Whatever the response boiled down to, i.e., a media item's URL
+         */
+        public final String value;
+
+        public Entry(String etag, String lastModified, String value) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Entries in least recently used order
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Constructor
+     * @param maxEntries How many URLs to remember
+     */
+    public ValidatorCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, ValidatorCache.Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ValidatorCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param url The URL
+     * @return What we last got for the URL, null if nothing usable
+     */
+    public synchronized Entry get(String url) {
+        return entries.get(url);
+    }
+
+    /**
+     * Remembers a response, responses without validators are forgotten as they can't be
+     * revalidated
+     * @param url The URL
+     * @param etag ETag header, null if there wasn't one
+     * @param lastModified Last-Modified header, null if there wasn't one
+     * @param value What the response boiled down to
+     */
+    public synchronized void put(String url, String etag, String lastModified, String value) {
+        if (etag == null && lastModified == null) {
+            entries.remove(url);
+            return;
+        }
+        entries.put(url, new Entry(etag, lastModified, value));
+    }
+
+    /**
+     * Forgets the URL, i.e., when what we made of the response turned out to be bad
+     * @param url The URL
+     */
+    public synchronized void remove(String url) {
+        entries.remove(url);
+    }
+}
@@ -0,0 +1,98 @@
+package ca.rom.mediaplayer;
+
+import android.util.Log;
+
+import com.android.volley.Cache;
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.Network;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Sends media requests with Volley over the shared HTTP client, delivering on the executor of the
+ * service that owns it.  Each transport has its own queue and cache directory.
+ */
+public class VolleyTransport implements MediaTransport {
+    /**
+     * What log tag we want to use
+     */
+    private static final String TAG = "VolleyTransport";
+
+    /**
+     * The Volley request queue
+     */
+    private final RequestQueue mRequestQueue;
+
+    /**
+     * Who is told when requests finish
+     */
+    private volatile Listener listener;
+
+    /**
+     * Constructor, the queue starts straight away
+     * @param client The HTTP client to go through, i.e., SharedHttpClient
+     * @param cacheDir Where Volley keeps its cache
+     * @param threadPoolSize How many requests can be on the network at once
+     * @param deliveryExecutor Where responses, and finishing, are delivered
+     */
+    public VolleyTransport(OkHttpClient client, File cacheDir, int threadPoolSize, final Executor deliveryExecutor) {
+        Log.d(TAG, "Creating new HTTP queue");
+
+        // Instantiate the cache
+        Cache cache = new DiskBasedCache(cacheDir, 1024 * 1024); // 1MB cap
+
+        // Go through the HTTP client the media downloads share, pooled connections and all
+        Network network = new BasicNetwork(new OkHttpStack(client));
+
+        mRequestQueue = new RequestQueue(cache, network, threadPoolSize, new ExecutorDelivery(deliveryExecutor));
+
+        // Finishing can happen on the network threads, hop over to the delivery executor
+        mRequestQueue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(final Request<Object> request) {
+                deliveryExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Listener listener = VolleyTransport.this.listener;
+                        if (listener != null && request instanceof MediaJsonRequest) {
+                            listener.onRequestFinished((MediaJsonRequest<?>) request);
+                        }
+                    }
+                });
+            }
+        });
+
+        // Start the queue
+        mRequestQueue.start();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void send(MediaJsonRequest<?> request) {
+        mRequestQueue.add(request);
+    }
+
+    @Override
+    public void release() {
+        Log.d(TAG, "Stopping HTTP queue");
+        listener = null;
+        mRequestQueue.cancelAll(new RequestQueue.RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                return true;
+            }
+        });
+        mRequestQueue.stop();
+    }
+}
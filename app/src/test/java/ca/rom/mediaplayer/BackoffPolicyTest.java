@@ -0,0 +1,123 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for the retry backoff and circuit breaker, driven by a fake clock
+ */
+public class BackoffPolicyTest {
+
+    /**
+     * A clock that only moves when we tell it to
+     */
+    static class FakeClock implements Clock {
+        long now = 1000;
+
+        long wallTime = 1500000000000L;
+
+        @Override
+        public long elapsedRealtime() {
+            return now;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return wallTime;
+        }
+    }
+
+    private FakeClock clock;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new FakeClock();
+    }
+
+    @Test
+    public void delaysGrowAndAreCapped() throws Exception {
+        BackoffPolicy policy = new BackoffPolicy(clock, new Random(42), 100, 1000, 100, 100, 5000);
+
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            long ceiling = Math.min(1000, 100L << (attempt - 1));
+            long delay = policy.onFailure(attempt);
+
+            // Jitter stays within the top half of the exponential ceiling
+            assertTrue("attempt " + attempt + " delay " + delay, delay >= ceiling / 2);
+            assertTrue("attempt " + attempt + " delay " + delay, delay <= ceiling);
+        }
+    }
+
+    @Test
+    public void jitterSpreadsDelays() throws Exception {
+        BackoffPolicy policy = new BackoffPolicy(clock, new Random(7), 1000, 1000, 100, 100, 5000);
+
+        long first = policy.onFailure(1);
+        boolean differs = false;
+        for (int i = 0; i < 20; i++) {
+            differs |= policy.onFailure(1) != first;
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        BackoffPolicy policy = new BackoffPolicy(clock, new Random(1), 100, 1000, 3, 100, 5000);
+
+        assertNotEquals(BackoffPolicy.GIVE_UP, policy.onFailure(1));
+        assertNotEquals(BackoffPolicy.GIVE_UP, policy.onFailure(2));
+        assertEquals(BackoffPolicy.GIVE_UP, policy.onFailure(3));
+    }
+
+    @Test
+    public void breakerOpensAfterThresholdAndClosesAfterCooldown() throws Exception {
+        BackoffPolicy policy = new BackoffPolicy(clock, new Random(1), 10, 100, 100, 3, 5000);
+
+        policy.onFailure(1);
+        policy.onFailure(1);
+        assertFalse(policy.isOpen());
+
+        // Third failure in a row trips it, retries now wait out the cool down
+        long delay = policy.onFailure(1);
+        assertTrue(policy.isOpen());
+        assertEquals(5000, delay);
+        assertEquals(5000, policy.getBlockedForMs());
+
+        clock.now += 2000;
+        assertEquals(3000, policy.getBlockedForMs());
+
+        clock.now += 3000;
+        assertFalse(policy.isOpen());
+    }
+
+    @Test
+    public void failedTrialReopensBreaker() throws Exception {
+        BackoffPolicy policy = new BackoffPolicy(clock, new Random(1), 10, 100, 100, 2, 5000);
+
+        policy.onFailure(1);
+        policy.onFailure(1);
+        clock.now += 5000;
+        assertFalse(policy.isOpen());
+
+        // The first request through fails again
+        policy.onFailure(1);
+        assertTrue(policy.isOpen());
+    }
+
+    @Test
+    public void successClosesBreaker() throws Exception {
+        BackoffPolicy policy = new BackoffPolicy(clock, new Random(1), 10, 100, 100, 2, 5000);
+
+        policy.onFailure(1);
+        policy.onFailure(1);
+        assertTrue(policy.isOpen());
+
+        policy.onSuccess();
+        assertFalse(policy.isOpen());
+        assertEquals(0, policy.getBlockedForMs());
+    }
+}
@@ -0,0 +1,94 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+
+import okhttp3.Dns;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for caching DNS answers
+ */
+public class CachingDnsTest {
+
+    /**
+     * Answers with a new address every time and counts the lookups
+     */
+    private static class CountingDns implements Dns {
+        int lookups = 0;
+        boolean failing = false;
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            lookups++;
+            if (failing) {
+                throw new UnknownHostException(hostname);
+            }
+            return Collections.singletonList(InetAddress.getByAddress(hostname, new byte[]{10, 0, 0, (byte) lookups}));
+        }
+    }
+
+    private BackoffPolicyTest.FakeClock clock;
+
+    private CountingDns delegate;
+
+    private CachingDns dns;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new BackoffPolicyTest.FakeClock();
+        delegate = new CountingDns();
+        dns = new CachingDns(delegate, clock, 1000);
+    }
+
+    @Test
+    public void reusesAnswerUntilItExpires() throws Exception {
+        List<InetAddress> first = dns.lookup("cdn.example.com");
+        clock.now += 999;
+        assertEquals(first, dns.lookup("cdn.example.com"));
+        assertEquals(1, delegate.lookups);
+
+        clock.now += 1;
+        assertNotEquals(first, dns.lookup("cdn.example.com"));
+        assertEquals(2, delegate.lookups);
+    }
+
+    @Test
+    public void cachesEachHostSeparately() throws Exception {
+        dns.lookup("api.example.com");
+        dns.lookup("cdn.example.com");
+        dns.lookup("api.example.com");
+
+        assertEquals(2, delegate.lookups);
+    }
+
+    @Test
+    public void doesNotRememberFailures() throws Exception {
+        delegate.failing = true;
+        try {
+            dns.lookup("cdn.example.com");
+            fail();
+        } catch (UnknownHostException expected) {
+            // Expected
+        }
+
+        delegate.failing = false;
+        assertEquals(1, dns.lookup("cdn.example.com").size());
+        assertEquals(2, delegate.lookups);
+    }
+
+    @Test
+    public void clearForgetsAnswers() throws Exception {
+        dns.lookup("cdn.example.com");
+        dns.clear();
+        dns.lookup("cdn.example.com");
+
+        assertEquals(2, delegate.lookups);
+    }
+}
@@ -0,0 +1,123 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for the compact media list
+ */
+public class CompactPlaylistStoreTest {
+
+    private static final String GUID = "dde6215d-14bb-4b37-bb01-68287228615a";
+
+    @Test
+    public void idsComeBackExactly() throws Exception {
+        CompactPlaylistStore store = new CompactPlaylistStore(1);
+        store.append(GUID, 0);
+        store.append(GUID.toUpperCase(), 1);
+        store.append("media-item-1", 2);
+        store.append("00000000-0000-0000-0000-000000000000", 3);
+        store.append("dde6215d-14bb-4b37-bb01-68287228615", 4);
+
+        assertEquals(5, store.size());
+        assertEquals(GUID, store.getId(0));
+        assertEquals(GUID.toUpperCase(), store.getId(1));
+        assertEquals("media-item-1", store.getId(2));
+        assertEquals("00000000-0000-0000-0000-000000000000", store.getId(3));
+        assertEquals("dde6215d-14bb-4b37-bb01-68287228615", store.getId(4));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, store.getSequenceNumber(i));
+            assertNull(store.getUrl(i));
+            assertFalse(store.isFailed(i));
+        }
+    }
+
+    @Test
+    public void urlsShareTheirPrefix() throws Exception {
+        CompactPlaylistStore store = new CompactPlaylistStore();
+        store.append("a", 0);
+        store.append("b", 1);
+        store.append("c", 2);
+        store.setUrl(0, "https://cdn.example.com/vod/a.m3u8");
+        store.setUrl(1, "https://cdn.example.com/vod/b.m3u8");
+        store.setUrl(2, "");
+
+        assertEquals("https://cdn.example.com/vod/a.m3u8", store.getUrl(0));
+        assertEquals("https://cdn.example.com/vod/b.m3u8", store.getUrl(1));
+        assertNull(store.getUrl(2));
+    }
+
+    @Test
+    public void materializedItemsAreKeptUntilTheyLeaveTheWindow() throws Exception {
+        CompactPlaylistStore store = new CompactPlaylistStore();
+        for (int i = 0; i < 4; i++) {
+            store.append(String.valueOf(i), i);
+        }
+
+        MediaItem first = store.get(1);
+        assertSame(first, store.get(1));
+        first.url = "https://example.com/1.m3u8";
+        store.get(2).failed = true;
+        assertEquals("https://example.com/1.m3u8", store.getUrl(1));
+
+        store.retainWindow(3, 4);
+        assertEquals(0, store.getMaterializedCount());
+        assertNotSame(first, store.get(1));
+        assertEquals("https://example.com/1.m3u8", store.get(1).url);
+        assertTrue(store.isFailed(2));
+    }
+
+    @Test
+    public void carriesOverUrlsById() throws Exception {
+        CompactPlaylistStore old = new CompactPlaylistStore();
+        old.append(GUID, 0);
+        old.append("b", 1);
+        old.append("c", 2);
+        old.setUrl(0, "https://example.com/guid.m3u8");
+        old.get(1).url = "https://example.com/b.m3u8";
+
+        CompactPlaylistStore store = new CompactPlaylistStore();
+        store.append("c", 0);
+        store.append("b", 1);
+        store.append(GUID, 2);
+        store.append("d", 3);
+
+        assertEquals(2, store.carryOverUrls(old));
+        assertNull(store.getUrl(0));
+        assertEquals("https://example.com/b.m3u8", store.getUrl(1));
+        assertEquals("https://example.com/guid.m3u8", store.getUrl(2));
+        assertNull(store.getUrl(3));
+        assertEquals(0, store.carryOverUrls(null));
+    }
+
+    @Test
+    public void copiesAreIndependent() throws Exception {
+        List<MediaItem> mediaItems = new ArrayList<>();
+        MediaItem resolved = new MediaItem(GUID, 0);
+        resolved.url = "https://example.com/a.m3u8";
+        mediaItems.add(resolved);
+        MediaItem failed = new MediaItem("b", 1);
+        failed.failed = true;
+        mediaItems.add(failed);
+
+        CompactPlaylistStore store = CompactPlaylistStore.copyOf(mediaItems);
+        CompactPlaylistStore copy = CompactPlaylistStore.copyOf(store);
+        store.setUrl(1, "https://example.com/b.m3u8");
+
+        assertEquals("https://example.com/a.m3u8", copy.getUrl(0));
+        assertNull(copy.getUrl(1));
+        assertTrue(copy.isFailed(1));
+
+        CompactPlaylistStore unresolved = CompactPlaylistStore.unresolvedCopyOf(store);
+        assertEquals(GUID, unresolved.getId(0));
+        assertEquals(1, unresolved.getSequenceNumber(1));
+        assertNull(unresolved.getUrl(0));
+        assertFalse(unresolved.isFailed(1));
+        assertTrue(unresolved.hasSameId(0, store, 0));
+        assertFalse(unresolved.hasSameId(0, store, 1));
+    }
+}
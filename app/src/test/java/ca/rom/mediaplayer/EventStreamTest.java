@@ -0,0 +1,184 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for event delivery, buffering and ordering
+ */
+public class EventStreamTest {
+
+    /**
+     * Holds on to runnables until the test runs them, like a looper that hasn't got to them yet
+     */
+    static class QueuedExecutor implements Executor {
+        final Queue<Runnable> runnables = new LinkedList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll() {
+            Runnable runnable;
+            while ((runnable = runnables.poll()) != null) {
+                runnable.run();
+            }
+        }
+    }
+
+    /**
+     * Runs on the calling thread
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    static class RecordingListener implements EventStream.Listener<Integer> {
+        final List<Integer> events = new ArrayList<>();
+
+        @Override
+        public void onEvent(Integer event) {
+            events.add(event);
+        }
+    }
+
+    @Test
+    public void deliversOnListenersExecutorInOrder() throws Exception {
+        EventStream<Integer> stream = new EventStream<>();
+        QueuedExecutor executor = new QueuedExecutor();
+        RecordingListener listener = new RecordingListener();
+        stream.addListener(listener, executor);
+
+        for (int i = 0; i < 5; i++) {
+            stream.emit(i);
+        }
+
+        // Nothing happens on the emitting thread, and one drain covers the lot
+        assertTrue(listener.events.isEmpty());
+        assertEquals(1, executor.runnables.size());
+
+        executor.runAll();
+        assertEquals(5, listener.events.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Integer.valueOf(i), listener.events.get(i));
+        }
+    }
+
+    @Test
+    public void emittingFromListenerDoesNotRecurse() throws Exception {
+        final EventStream<Integer> stream = new EventStream<>();
+        final int[] depth = {0};
+        final int[] maxDepth = {0};
+        final List<Integer> events = new ArrayList<>();
+
+        stream.addListener(new EventStream.Listener<Integer>() {
+            @Override
+            public void onEvent(Integer event) {
+                depth[0]++;
+                maxDepth[0] = Math.max(maxDepth[0], depth[0]);
+                events.add(event);
+                if (event < 10000) {
+                    stream.emit(event + 1);
+                }
+                depth[0]--;
+            }
+        }, DIRECT);
+
+        stream.emit(0);
+
+        assertEquals(10001, events.size());
+        assertEquals(1, maxDepth[0]);
+    }
+
+    @Test
+    public void boundedBufferDropsOldest() throws Exception {
+        EventStream<Integer> stream = new EventStream<>();
+        QueuedExecutor executor = new QueuedExecutor();
+        RecordingListener listener = new RecordingListener();
+        stream.addListener(listener, executor, 2);
+
+        stream.emit(1);
+        stream.emit(2);
+        stream.emit(3);
+        executor.runAll();
+
+        assertEquals(2, listener.events.size());
+        assertEquals(Integer.valueOf(2), listener.events.get(0));
+        assertEquals(Integer.valueOf(3), listener.events.get(1));
+        assertEquals(1, stream.getDroppedCount(listener));
+    }
+
+    @Test
+    public void removedListenerHearsNothingMore() throws Exception {
+        EventStream<Integer> stream = new EventStream<>();
+        QueuedExecutor executor = new QueuedExecutor();
+        RecordingListener listener = new RecordingListener();
+        stream.addListener(listener, executor);
+
+        stream.emit(1);
+        stream.removeListener(listener);
+        stream.emit(2);
+        executor.runAll();
+
+        assertTrue(listener.events.isEmpty());
+    }
+
+    @Test
+    public void holdsEventsForFirstListener() throws Exception {
+        EventStream<Integer> stream = new EventStream<>(true);
+        stream.emit(0);
+        stream.emit(1);
+
+        RecordingListener first = new RecordingListener();
+        stream.addListener(first, DIRECT);
+        stream.emit(2);
+        assertEquals(3, first.events.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Integer.valueOf(i), first.events.get(i));
+        }
+
+        // Only the first one gets what was held
+        RecordingListener second = new RecordingListener();
+        stream.addListener(second, DIRECT);
+        assertTrue(second.events.isEmpty());
+    }
+
+    @Test
+    public void holdsNothingOnceListenedTo() throws Exception {
+        EventStream<Integer> stream = new EventStream<>(true);
+        RecordingListener first = new RecordingListener();
+        stream.addListener(first, DIRECT);
+        stream.removeListener(first);
+
+        // Whoever listens next didn't want what came in between
+        stream.emit(0);
+        RecordingListener second = new RecordingListener();
+        stream.addListener(second, DIRECT);
+        stream.emit(1);
+        assertEquals(1, second.events.size());
+        assertEquals(Integer.valueOf(1), second.events.get(0));
+    }
+
+    @Test
+    public void dropsEventsNobodyHearsByDefault() throws Exception {
+        EventStream<Integer> stream = new EventStream<>();
+        stream.emit(0);
+
+        RecordingListener listener = new RecordingListener();
+        stream.addListener(listener, DIRECT);
+        stream.emit(1);
+        assertEquals(1, listener.events.size());
+        assertEquals(Integer.valueOf(1), listener.events.get(0));
+    }
+}
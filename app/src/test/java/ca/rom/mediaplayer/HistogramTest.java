@@ -0,0 +1,79 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for the metrics histogram
+ */
+public class HistogramTest {
+
+    @Test
+    public void empty() {
+        Histogram histogram = new Histogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void countsAndBounds() {
+        Histogram histogram = new Histogram();
+        histogram.record(5);
+        histogram.record(0);
+        histogram.record(-3);
+        histogram.record(1000);
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(1005, histogram.getSum());
+        assertEquals(0, histogram.getMin());
+        assertEquals(1000, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesWithinBucket() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        // 50 falls in the 32-63 bucket, 90 and 99 in 64-127 which is capped at the max
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(90));
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void singleValueIsExact() {
+        Histogram histogram = new Histogram();
+        histogram.record(700);
+
+        assertEquals(700, histogram.getPercentile(50));
+        assertEquals(700, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void hugeValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void reset() {
+        Histogram histogram = new Histogram();
+        histogram.record(10);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        histogram.record(3);
+        assertEquals(3, histogram.getMin());
+        assertEquals(3, histogram.getPercentile(50));
+    }
+}
@@ -0,0 +1,595 @@
+package ca.rom.mediaplayer;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests of the media data service running on the JVM, with a fake transport, executor
+ * and clock in place of Volley and the main thread
+ */
+public class MediaDataServiceHostTest {
+
+    /**
+     * Runs tasks when told to, in the order they are due
+     */
+    static class FakeExecutor implements ServiceExecutor {
+        private static class Task {
+            final long runAt;
+            final Runnable runnable;
+
+            Task(long runAt, Runnable runnable) {
+                this.runAt = runAt;
+                this.runnable = runnable;
+            }
+        }
+
+        final BackoffPolicyTest.FakeClock clock;
+
+        private final List<Task> tasks = new ArrayList<>();
+
+        FakeExecutor(BackoffPolicyTest.FakeClock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            executeDelayed(runnable, 0);
+        }
+
+        @Override
+        public void executeDelayed(Runnable runnable, long delayMs) {
+            tasks.add(new Task(clock.now + delayMs, runnable));
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+            Iterator<Task> iterator = tasks.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().runnable == runnable) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Runs everything that is due, including whatever that schedules for now
+         */
+        void runUntilIdle() {
+            while (true) {
+                Task next = null;
+                for (Task task : tasks) {
+                    if (task.runAt <= clock.now && (next == null || task.runAt < next.runAt)) {
+                        next = task;
+                    }
+                }
+                if (next == null) {
+                    return;
+                }
+                tasks.remove(next);
+                next.runnable.run();
+            }
+        }
+
+        void advance(long ms) {
+            clock.now += ms;
+            runUntilIdle();
+        }
+    }
+
+    /**
+     * Answers requests from a map of URL to body, anything not in it is a 404 and anything held
+     * waits until it is answered
+     */
+    static class FakeTransport implements MediaTransport {
+        final Map<String, String> bodies = new HashMap<>();
+
+        final List<String> held = new ArrayList<>();
+
+        final List<String> sent = new ArrayList<>();
+
+        private final List<MediaJsonRequest<?>> waiting = new ArrayList<>();
+
+        boolean released = false;
+
+        private final Executor executor;
+
+        private Listener listener;
+
+        FakeTransport(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void send(final MediaJsonRequest<?> request) {
+            sent.add(request.getUrl());
+            if (held.contains(request.getUrl())) {
+                waiting.add(request);
+                return;
+            }
+            answer(request);
+        }
+
+        /**
+         * Stops holding the URL and answers whatever was waiting on it
+         */
+        void answer(String url) {
+            held.remove(url);
+            Iterator<MediaJsonRequest<?>> iterator = waiting.iterator();
+            while (iterator.hasNext()) {
+                MediaJsonRequest<?> request = iterator.next();
+                if (request.getUrl().equals(url)) {
+                    iterator.remove();
+                    answer(request);
+                }
+            }
+        }
+
+        private void answer(final MediaJsonRequest<?> request) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!request.isCanceled()) {
+                        deliver(request, bodies.get(request.getUrl()));
+                    }
+                    listener.onRequestFinished(request);
+                }
+            });
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+
+        private static <T> void deliver(MediaJsonRequest<T> request, String body) {
+            if (body == null) {
+                request.deliverError(new VolleyError(new NetworkResponse(404, new byte[0],
+                        Collections.<String, String>emptyMap(), false)));
+                return;
+            }
+            Response<T> response = request.parseNetworkResponse(new NetworkResponse(200,
+                    body.getBytes(Charset.forName("UTF-8")), Collections.<String, String>emptyMap(), false));
+            if (response.isSuccess()) {
+                request.deliverResponse(response.result);
+            } else {
+                request.deliverError(response.error);
+            }
+        }
+    }
+
+    /**
+     * Remembers what it was sent
+     */
+    private static class RecordingListener implements EventStream.Listener<MediaItem> {
+        final List<MediaItem> received = new ArrayList<>();
+
+        @Override
+        public void onEvent(MediaItem mediaItem) {
+            received.add(mediaItem);
+        }
+
+        List<String> ids() {
+            List<String> ids = new ArrayList<>();
+            for (MediaItem mediaItem : received) {
+                ids.add(mediaItem.id);
+            }
+            return ids;
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BackoffPolicyTest.FakeClock clock;
+
+    private FakeExecutor executor;
+
+    private FakeTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new BackoffPolicyTest.FakeClock();
+        executor = new FakeExecutor(clock);
+        transport = new FakeTransport(executor);
+    }
+
+    private MediaDataService.Config newConfig(String mediaListUrl) throws Exception {
+        MediaDataService.Config config = new MediaDataService.Config();
+        config.mediaListUrl = mediaListUrl;
+        config.itemDeadlineMs = 1000;
+        config.lookaheadLaneLimit = 2;
+        config.snapshotFile = new File(folder.newFolder(), "playlist.snapshot");
+        config.cacheDir = folder.newFolder();
+        return config;
+    }
+
+    private MediaDataService newService(String mediaListUrl, RecordingListener listener) throws Exception {
+        return newService(newConfig(mediaListUrl), listener);
+    }
+
+    private MediaDataService newService(MediaDataService.Config config, RecordingListener listener) throws Exception {
+        MediaDataService service = new MediaDataService(config, transport, executor, clock,
+                new PlaybackMetrics(folder.newFile(), 60 * 1000));
+        service.addListener(listener, DIRECT);
+        return service;
+    }
+
+    private void serveList(String mediaListUrl, String... ids) {
+        StringBuilder body = new StringBuilder("{\"media_items\": [");
+        for (int i = 0; i < ids.length; i++) {
+            body.append(i > 0 ? ", " : "").append('"').append(ids[i]).append('"');
+            transport.bodies.put(mediaListUrl + "/" + ids[i], "{\"id\": [{\"id\": \"" + ids[i] +
+                    "\", \"url\": \"http://example.com/" + ids[i] + ".m3u8\"}]}");
+        }
+        transport.bodies.put(mediaListUrl, body.append("]}").toString());
+    }
+
+    @Test
+    public void resolvesMediaListInOrder() throws Exception {
+        serveList("http://a.example.com/media", "a", "b", "c");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+
+        service.refreshMediaList();
+        executor.runUntilIdle();
+
+        assertEquals(3, listener.received.size());
+        for (int i = 0; i < 3; i++) {
+            MediaItem mediaItem = listener.received.get(i);
+            assertEquals(i, mediaItem.sequenceNumber);
+            assertEquals("http://example.com/" + mediaItem.id + ".m3u8", mediaItem.url);
+        }
+        assertEquals(3, service.getTotalMediaItemCount());
+    }
+
+    @Test
+    public void onlyLetsOutWhatListenersHaveRoomFor() throws Exception {
+        String[] ids = new String[20];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "item" + i;
+        }
+        serveList("http://a.example.com/media", ids);
+        RecordingListener listener = new RecordingListener();
+        MediaDataService.Config config = newConfig("http://a.example.com/media");
+        config.emitAhead = 2;
+        MediaDataService service = newService(config, listener);
+
+        // The window stops at the cursor, so only a few past it are looked up either
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        assertEquals(Arrays.asList("item0", "item1"), listener.ids());
+        assertTrue(transport.sent.size() <= 1 + 2 + config.resolveAhead);
+
+        // Deadlines don't skip anything while nobody is asking
+        executor.advance(60 * 1000);
+        service.requestMediaItems(3);
+        executor.runUntilIdle();
+        assertEquals(Arrays.asList("item0", "item1", "item2", "item3", "item4"), listener.ids());
+        assertTrue(transport.sent.size() <= 1 + 5 + config.resolveAhead);
+    }
+
+    @Test
+    public void playsSnapshotThroughTheWindow() throws Exception {
+        MediaDataService.Config config = newConfig("http://a.example.com/media");
+        config.emitAhead = 2;
+        List<MediaItem> saved = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            MediaItem mediaItem = new MediaItem("item" + i, i);
+            // One never resolved before it was saved
+            if (i != 2) {
+                mediaItem.url = "http://example.com/item" + i + ".m3u8";
+            }
+            saved.add(mediaItem);
+        }
+        new PlaylistSnapshotStore(config.snapshotFile).save(new PlaylistSnapshot(saved, "\"v1\"", 0));
+        transport.bodies.put("http://a.example.com/media/item2",
+                "{\"id\": [{\"id\": \"item2\", \"url\": \"http://example.com/item2.m3u8\"}]}");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService(config, listener);
+
+        // Only what the player has room for comes out of the snapshot
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        assertEquals(Arrays.asList("item0", "item1"), listener.ids());
+
+        // The one it never had is looked up like any other, the list itself is still down
+        service.requestMediaItems(10);
+        executor.runUntilIdle();
+        assertEquals(Arrays.asList("item0", "item1", "item2", "item3", "item4"), listener.ids());
+        assertTrue(service.isOffline());
+    }
+
+    @Test
+    public void freshSnapshotIsNotFetchedAgain() throws Exception {
+        serveList("http://a.example.com/media", "a", "b");
+        MediaDataService.Config config = newConfig("http://a.example.com/media");
+        List<MediaItem> saved = new ArrayList<>();
+        MediaItem mediaItem = new MediaItem("a", 0);
+        mediaItem.url = "http://example.com/a.m3u8";
+        saved.add(mediaItem);
+        new PlaylistSnapshotStore(config.snapshotFile).save(
+                new PlaylistSnapshot(saved, "\"v1\"", clock.wallTime + 1000));
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService(config, listener);
+
+        // Good for another second by the service's clock, not the machine's
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        assertEquals(Arrays.asList("a"), listener.ids());
+        assertFalse(transport.sent.contains("http://a.example.com/media"));
+    }
+
+    @Test
+    public void releaseStopsEverything() throws Exception {
+        serveList("http://a.example.com/media", "a", "b");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+        FakeEventSource eventSource = new FakeEventSource();
+        service.setEventSource(eventSource);
+        service.refreshMediaList();
+        executor.runUntilIdle();
+
+        service.release();
+        assertTrue(transport.released);
+        assertTrue(eventSource.stopped);
+
+        // No more polls, and nothing starts it again
+        int sent = transport.sent.size();
+        executor.advance(60 * 60 * 1000);
+        service.refreshMediaList();
+        service.updateMediaList();
+        executor.runUntilIdle();
+        assertEquals(sent, transport.sent.size());
+        assertEquals(2, listener.received.size());
+    }
+
+    @Test
+    public void eachMediaListGetsItsOwnFiles() {
+        String a = MediaDataService.fileKey("http://a.example.com/media");
+        assertEquals(a, MediaDataService.fileKey("http://a.example.com/media"));
+        assertNotEquals(a, MediaDataService.fileKey("http://b.example.com/media"));
+        assertTrue(a.matches("[0-9a-f]{16}"));
+    }
+
+    @Test
+    public void instancesKeepTheirOwnMediaLists() throws Exception {
+        serveList("http://a.example.com/media", "a", "b");
+        serveList("http://b.example.com/media", "x", "y", "z");
+        RecordingListener listenerA = new RecordingListener();
+        RecordingListener listenerB = new RecordingListener();
+        MediaDataService serviceA = newService("http://a.example.com/media", listenerA);
+        MediaDataService serviceB = newService("http://b.example.com/media", listenerB);
+
+        serviceA.refreshMediaList();
+        serviceB.refreshMediaList();
+        executor.runUntilIdle();
+
+        assertEquals(2, listenerA.received.size());
+        assertEquals("a", listenerA.received.get(0).id);
+        assertEquals("b", listenerA.received.get(1).id);
+        assertEquals(3, listenerB.received.size());
+        assertEquals("z", listenerB.received.get(2).id);
+
+        // Starting one over leaves the other alone
+        serviceA.refreshMediaList();
+        executor.runUntilIdle();
+        assertEquals(4, listenerA.received.size());
+        assertEquals(3, listenerB.received.size());
+    }
+
+    @Test
+    public void skipsItemPastItsDeadline() throws Exception {
+        serveList("http://a.example.com/media", "a", "b", "c");
+        transport.held.add("http://a.example.com/media/b");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        assertEquals(Collections.singletonList("a"), listener.ids());
+
+        // The fake clock moves the deadline along with the executor
+        executor.advance(1000);
+        assertEquals(2, listener.received.size());
+        assertEquals("c", listener.received.get(1).id);
+    }
+
+    @Test
+    public void updateLetsLookupsInFlightFinish() throws Exception {
+        serveList("http://a.example.com/media", "a", "b", "c");
+        transport.held.add("http://a.example.com/media/a");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        assertTrue(listener.ids().isEmpty());
+
+        // A poll goes out while the head is still being looked up
+        transport.held.add("http://a.example.com/media");
+        service.updateMediaList();
+        executor.runUntilIdle();
+
+        transport.answer("http://a.example.com/media/a");
+        executor.runUntilIdle();
+        assertEquals(Arrays.asList("a", "b", "c"), listener.ids());
+    }
+
+    @Test
+    public void looksUpFailedItemAgain() throws Exception {
+        serveList("http://a.example.com/media", "a", "b", "c");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+        service.refreshMediaList();
+        executor.runUntilIdle();
+
+        transport.bodies.put("http://a.example.com/media/b",
+                "{\"id\": [{\"id\": \"b\", \"url\": \"http://example.com/b2.m3u8\"}]}");
+        service.reportPlaybackFailure("http://example.com/b.m3u8");
+        executor.runUntilIdle();
+        assertEquals("http://a.example.com/media/b", transport.sent.get(transport.sent.size() - 1));
+
+        // The next time around plays the new URL
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        assertEquals(6, listener.received.size());
+        assertEquals("http://example.com/b2.m3u8", listener.received.get(4).url);
+    }
+
+    @Test
+    public void skipsQuarantinedUrl() throws Exception {
+        serveList("http://a.example.com/media", "a", "b", "c");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+        service.refreshMediaList();
+        executor.runUntilIdle();
+
+        // The server still has the same URL for it
+        service.reportPlaybackFailure("http://example.com/b.m3u8");
+        executor.runUntilIdle();
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        assertEquals(Arrays.asList("a", "b", "c", "a", "c"), listener.ids());
+    }
+
+    @Test
+    public void pushedChangeReplacesPolling() throws Exception {
+        serveList("http://a.example.com/media", "a", "b");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+        FakeEventSource eventSource = new FakeEventSource();
+        service.setEventSource(eventSource);
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        eventSource.listener.onConnected(false);
+
+        // Nothing goes out while the stream is open
+        int sent = transport.sent.size();
+        executor.advance(60 * 60 * 1000);
+        assertEquals(sent, transport.sent.size());
+
+        serveList("http://a.example.com/media", "a", "b", "c");
+        eventSource.listener.onEvent("message", "v2");
+        executor.runUntilIdle();
+        assertEquals(Arrays.asList("a", "b", "c"), listener.ids());
+    }
+
+    @Test
+    public void reconnectOnlyFetchesWhenNothingIsReplayed() throws Exception {
+        serveList("http://a.example.com/media", "a", "b");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+        FakeEventSource eventSource = new FakeEventSource();
+        service.setEventSource(eventSource);
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        eventSource.listener.onConnected(false);
+
+        // The server replays what we missed, a proxy cutting the stream costs nothing
+        int sent = transport.sent.size();
+        eventSource.listener.onDisconnected();
+        eventSource.listener.onConnected(true);
+        executor.runUntilIdle();
+        assertEquals(sent, transport.sent.size());
+
+        // Without an event id there is no telling what we missed
+        eventSource.listener.onDisconnected();
+        eventSource.listener.onConnected(false);
+        executor.runUntilIdle();
+        assertEquals("http://a.example.com/media", transport.sent.get(sent));
+    }
+
+    @Test
+    public void refreshesInFlightShareOneFetch() throws Exception {
+        serveList("http://a.example.com/media", "a", "b");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+
+        service.refreshMediaList();
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        assertEquals(1, Collections.frequency(transport.sent, "http://a.example.com/media"));
+        assertEquals(Arrays.asList("a", "b"), listener.ids());
+
+        // Updates while a fetch is out are caught up with once, after it
+        serveList("http://a.example.com/media", "a", "b", "c");
+        service.updateMediaList();
+        service.updateMediaList();
+        service.updateMediaList();
+        executor.runUntilIdle();
+        assertEquals(3, Collections.frequency(transport.sent, "http://a.example.com/media"));
+        assertEquals(Arrays.asList("a", "b", "c"), listener.ids());
+    }
+
+    @Test
+    public void duplicateIdIsLookedUpOnce() throws Exception {
+        serveList("http://a.example.com/media", "a", "b", "a");
+        RecordingListener listener = new RecordingListener();
+        MediaDataService service = newService("http://a.example.com/media", listener);
+
+        service.refreshMediaList();
+        executor.runUntilIdle();
+        assertEquals(1, Collections.frequency(transport.sent, "http://a.example.com/media/a"));
+        assertEquals(Arrays.asList("a", "b", "a"), listener.ids());
+        assertEquals("http://example.com/a.m3u8", listener.received.get(2).url);
+    }
+
+    /**
+     * Hands us its listener rather than opening a stream
+     */
+    private static class FakeEventSource extends PlaylistEventSource {
+        PlaylistEventSource.Listener listener;
+
+        FakeEventSource() {
+            super(new OkHttpClient(), "http://a.example.com/media/events", null, DIRECT);
+        }
+
+        @Override
+        public synchronized void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized void start() {
+        }
+
+        boolean stopped = false;
+
+        @Override
+        public synchronized void stop() {
+            stopped = true;
+        }
+    }
+}
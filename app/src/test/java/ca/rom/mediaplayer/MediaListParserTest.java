@@ -0,0 +1,72 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for the streaming media API parser
+ */
+public class MediaListParserTest {
+
+    private final MediaListParser parser = new MediaListParser();
+
+    @Test
+    public void parsesMediaListInOrder() throws Exception {
+        MediaListParser.MediaList mediaList = parser.parseMediaList(new StringReader(
+                "{\"name\": \"x\", \"media_items\": [\"a\", \"b\", 3], \"batch_resolve\": true}"));
+
+        assertTrue(mediaList.batchResolve);
+        assertEquals(3, mediaList.mediaItems.size());
+        assertEquals("a", mediaList.mediaItems.get(0).id);
+        assertEquals("b", mediaList.mediaItems.get(1).id);
+        assertEquals("3", mediaList.mediaItems.get(2).id);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, mediaList.mediaItems.get(i).sequenceNumber);
+            assertNull(mediaList.mediaItems.get(i).url);
+        }
+    }
+
+    @Test
+    public void fallsBackToFirstArrayWithoutMediaItems() throws Exception {
+        MediaListParser.MediaList mediaList = parser.parseMediaList(new StringReader(
+                "{\"count\": 2, \"items\": [\"a\", \"b\"], \"other\": [\"c\"]}"));
+
+        assertFalse(mediaList.batchResolve);
+        assertEquals(2, mediaList.mediaItems.size());
+        assertEquals("a", mediaList.mediaItems.get(0).id);
+    }
+
+    @Test
+    public void emptyMediaList() throws Exception {
+        assertTrue(parser.parseMediaList(new StringReader("{}")).mediaItems.isEmpty());
+    }
+
+    @Test
+    public void parsesMediaItemUrls() throws Exception {
+        Map<String, String> urls = parser.parseMediaItemUrls(new StringReader(
+                "{\"id\": [{\"quality\": \"auto\", \"duration\": 5, \"name\": \"media-item-1\", " +
+                        "\"url\": \"https://example.com/a.m3u8\", \"id\": \"a\"}, " +
+                        "{\"id\": \"b\", \"url\": \"https://example.com/b.m3u8\", \"extra\": {\"x\": [1]}}, " +
+                        "{\"id\": \"c\"}]}"));
+
+        assertEquals(2, urls.size());
+        assertEquals("https://example.com/a.m3u8", urls.get("a"));
+        assertEquals("https://example.com/b.m3u8", urls.get("b"));
+        assertEquals("a", urls.keySet().iterator().next());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedResponseThrows() throws Exception {
+        parser.parseMediaList(new StringReader("{\"media_items\": [\"a\""));
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongShapeThrows() throws Exception {
+        parser.parseMediaItemUrls(new StringReader("[1, 2]"));
+    }
+}
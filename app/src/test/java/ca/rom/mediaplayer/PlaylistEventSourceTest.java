@@ -0,0 +1,125 @@
+package ca.rom.mediaplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for the media list event stream against a local stub server
+ */
+public class PlaylistEventSourceTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * What the listener was told, in order
+     */
+    private final BlockingQueue<String> calls = new LinkedBlockingQueue<>();
+
+    private MockWebServer server;
+
+    private PlaylistEventSource eventSource;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+
+        // Reconnects straight away, the real clock doesn't matter with no circuit breaker
+        BackoffPolicy backoffPolicy = new BackoffPolicy(Clock.SYSTEM, new Random(), 10, 10,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, 0);
+        eventSource = new PlaylistEventSource(new OkHttpClient(), server.url("/media/events").toString(),
+                backoffPolicy, DIRECT);
+        eventSource.setListener(new PlaylistEventSource.Listener() {
+            @Override
+            public void onConnected(boolean resumed) {
+                calls.add(resumed ? "resumed" : "connected");
+            }
+
+            @Override
+            public void onEvent(String event, String data) {
+                calls.add(event + ":" + data);
+            }
+
+            @Override
+            public void onDisconnected() {
+                calls.add("disconnected");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventSource.stop();
+        server.shutdown();
+    }
+
+    private static MockResponse stream(String body) {
+        return new MockResponse().setHeader("Content-Type", "text/event-stream").setBody(body);
+    }
+
+    private String nextCall() throws InterruptedException {
+        return calls.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void deliversEvents() throws Exception {
+        server.enqueue(stream(": keep alive\n\nevent: playlist\ndata: v2\nid: 7\n\ndata: a\ndata:b\n\ndata: cut off"));
+        eventSource.start();
+
+        assertEquals("connected", nextCall());
+        assertEquals("playlist:v2", nextCall());
+        assertEquals("message:a\nb", nextCall());
+        assertEquals("disconnected", nextCall());
+
+        RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+        assertEquals("text/event-stream", request.getHeader("Accept"));
+        assertNull(request.getHeader("Last-Event-ID"));
+    }
+
+    @Test
+    public void reconnectsFromLastEventId() throws Exception {
+        server.enqueue(stream("id: 7\ndata: v2\n\n"));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(stream("data: v3\n\n"));
+        eventSource.start();
+
+        assertEquals("connected", nextCall());
+        assertEquals("message:v2", nextCall());
+        assertEquals("disconnected", nextCall());
+        assertEquals("resumed", nextCall());
+        assertEquals("message:v3", nextCall());
+
+        server.takeRequest(5, TimeUnit.SECONDS);
+        assertEquals("7", server.takeRequest(5, TimeUnit.SECONDS).getHeader("Last-Event-ID"));
+        assertEquals("7", server.takeRequest(5, TimeUnit.SECONDS).getHeader("Last-Event-ID"));
+    }
+
+    @Test
+    public void stopsCallingListener() throws Exception {
+        server.enqueue(stream("data: v2\n\n").throttleBody(5, 1, TimeUnit.SECONDS));
+        eventSource.start();
+        assertEquals("connected", nextCall());
+
+        eventSource.stop();
+        assertNull(calls.poll(2, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,79 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for reading and writing playlist snapshots
+ */
+public class PlaylistSnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsResolvedItems() throws Exception {
+        PlaylistSnapshotStore store = new PlaylistSnapshotStore(new File(folder.getRoot(), "snapshot"));
+
+        List<MediaItem> mediaItems = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            MediaItem mediaItem = new MediaItem("id-" + i, i);
+            mediaItem.url = "https://example.com/" + i + ".m3u8";
+            mediaItems.add(mediaItem);
+        }
+        store.save(new PlaylistSnapshot(mediaItems, "\"abc\"", 12345));
+
+        PlaylistSnapshot snapshot = store.load();
+        assertNotNull(snapshot);
+        assertEquals("\"abc\"", snapshot.etag);
+        assertEquals(12345, snapshot.expiresAt);
+        assertEquals(3, snapshot.mediaItems.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("id-" + i, snapshot.mediaItems.get(i).id);
+            assertEquals(i, snapshot.mediaItems.get(i).sequenceNumber);
+            assertEquals("https://example.com/" + i + ".m3u8", snapshot.mediaItems.get(i).url);
+        }
+    }
+
+    @Test
+    public void keepsUnresolvedItemsWithoutUrl() throws Exception {
+        PlaylistSnapshotStore store = new PlaylistSnapshotStore(new File(folder.getRoot(), "snapshot"));
+
+        List<MediaItem> mediaItems = new ArrayList<>();
+        mediaItems.add(new MediaItem("unresolved", 0));
+        MediaItem resolved = new MediaItem("resolved", 1);
+        resolved.url = "https://example.com/resolved.m3u8";
+        mediaItems.add(resolved);
+        store.save(new PlaylistSnapshot(mediaItems, "\"abc\"", 0));
+
+        // The ETag is for both, so both have to come back
+        PlaylistSnapshot snapshot = store.load();
+        assertEquals("\"abc\"", snapshot.etag);
+        assertEquals(2, snapshot.mediaItems.size());
+        assertEquals("unresolved", snapshot.mediaItems.get(0).id);
+        assertNull(snapshot.mediaItems.get(0).url);
+        assertEquals("resolved", snapshot.mediaItems.get(1).id);
+        assertEquals(1, snapshot.mediaItems.get(1).sequenceNumber);
+        assertTrue(snapshot.isExpired(1));
+    }
+
+    @Test
+    public void missingOrCorruptFileLoadsNothing() throws Exception {
+        File file = new File(folder.getRoot(), "snapshot");
+        PlaylistSnapshotStore store = new PlaylistSnapshotStore(file);
+        assertNull(store.load());
+
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {0, 0, 0, 1, 0});
+        out.close();
+        assertNull(store.load());
+    }
+}
@@ -0,0 +1,103 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for the priority lanes requests go out in
+ */
+public class RequestSchedulerTest {
+
+    /**
+     * Remembers what was sent and cancelled
+     */
+    private static class RecordingDispatcher implements RequestScheduler.Dispatcher<String> {
+        final List<String> dispatched = new ArrayList<>();
+        final List<String> cancelled = new ArrayList<>();
+
+        @Override
+        public void dispatch(String request, RequestScheduler.Lane lane) {
+            dispatched.add(request);
+        }
+
+        @Override
+        public void cancel(String request) {
+            cancelled.add(request);
+        }
+    }
+
+    private RecordingDispatcher dispatcher;
+
+    private RequestScheduler<String> scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        dispatcher = new RecordingDispatcher();
+        scheduler = new RequestScheduler<>(dispatcher, 1, 1, 1);
+    }
+
+    @Test
+    public void lanesHaveTheirOwnLimits() throws Exception {
+        scheduler.submit("refresh", RequestScheduler.Lane.BACKGROUND, null);
+        scheduler.submit("item 2", RequestScheduler.Lane.LOOKAHEAD, null);
+        scheduler.submit("item 3", RequestScheduler.Lane.LOOKAHEAD, null);
+        scheduler.submit("item 1", RequestScheduler.Lane.NEXT, null);
+
+        // The next item goes straight out even though the others are busy
+        assertEquals(Arrays.asList("refresh", "item 2", "item 1"), dispatcher.dispatched);
+        assertEquals(1, scheduler.getQueued(RequestScheduler.Lane.LOOKAHEAD));
+        assertEquals(3, scheduler.getMaxInFlight());
+    }
+
+    @Test
+    public void finishingMakesRoomInTheLane() throws Exception {
+        scheduler.submit("item 2", RequestScheduler.Lane.LOOKAHEAD, null);
+        scheduler.submit("item 3", RequestScheduler.Lane.LOOKAHEAD, null);
+
+        scheduler.onFinished("item 2");
+
+        assertEquals(Arrays.asList("item 2", "item 3"), dispatcher.dispatched);
+        assertEquals(1, scheduler.getInFlight(RequestScheduler.Lane.LOOKAHEAD));
+    }
+
+    @Test
+    public void promotedRequestGoesAheadOfTheQueue() throws Exception {
+        scheduler.submit("item 1", RequestScheduler.Lane.NEXT, "1");
+        scheduler.submit("item 2", RequestScheduler.Lane.LOOKAHEAD, "2");
+        scheduler.submit("item 3", RequestScheduler.Lane.LOOKAHEAD, "3");
+        scheduler.submit("item 4", RequestScheduler.Lane.LOOKAHEAD, "4");
+
+        // Item 2 was skipped while in flight, item 3 is up next and no longer waits on it
+        scheduler.onFinished("item 1");
+        scheduler.promote("3");
+
+        assertEquals(Arrays.asList("item 1", "item 2", "item 3"), dispatcher.dispatched);
+        assertEquals(1, scheduler.getInFlight(RequestScheduler.Lane.NEXT));
+        assertEquals(1, scheduler.getQueued(RequestScheduler.Lane.LOOKAHEAD));
+    }
+
+    @Test
+    public void cancelDropsQueuedAndInFlight() throws Exception {
+        scheduler.submit("refresh", RequestScheduler.Lane.BACKGROUND, null);
+        scheduler.submit("item 2", RequestScheduler.Lane.LOOKAHEAD, null);
+        scheduler.submit("item 3", RequestScheduler.Lane.LOOKAHEAD, null);
+
+        scheduler.cancel(RequestScheduler.Lane.NEXT, RequestScheduler.Lane.LOOKAHEAD);
+
+        assertEquals(Arrays.asList("item 2"), dispatcher.cancelled);
+        assertEquals(0, scheduler.getQueued(RequestScheduler.Lane.LOOKAHEAD));
+        assertEquals(1, scheduler.getInFlight(RequestScheduler.Lane.BACKGROUND));
+
+        // A cancelled request finishing late doesn't free anyone else's room
+        scheduler.submit("item 5", RequestScheduler.Lane.LOOKAHEAD, null);
+        scheduler.submit("item 6", RequestScheduler.Lane.LOOKAHEAD, null);
+        scheduler.onFinished("item 2");
+        assertEquals(Arrays.asList("refresh", "item 2", "item 5"), dispatcher.dispatched);
+    }
+}
@@ -0,0 +1,204 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for the resolve window and in order release of media items
+ */
+public class ResolveWindowTest {
+
+    /**
+     * Remembers what it was asked to look up
+     */
+    static class RecordingResolver implements ResolveWindow.Resolver {
+        final List<MediaItem> resolved = new ArrayList<>();
+        final List<List<MediaItem>> batches = new ArrayList<>();
+
+        @Override
+        public void resolve(MediaItem mediaItem) {
+            resolved.add(mediaItem);
+        }
+
+        @Override
+        public void resolveBatch(List<MediaItem> mediaItems) {
+            batches.add(mediaItems);
+        }
+    }
+
+    private final RecordingResolver resolver = new RecordingResolver();
+
+    private final BackoffPolicyTest.FakeClock clock = new BackoffPolicyTest.FakeClock();
+
+    private List<MediaItem> mediaItems;
+
+    @Before
+    public void setUp() {
+        mediaItems = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            mediaItems.add(new MediaItem("id" + i, i));
+        }
+    }
+
+    private ResolveWindow newWindow(int resolveAhead, int batchSize) {
+        return new ResolveWindow(resolveAhead, batchSize, clock, 1000);
+    }
+
+    @Test
+    public void resolvesOnlyAheadOfCursor() {
+        ResolveWindow window = newWindow(3, 4);
+        window.reset(mediaItems, 0);
+        window.resolveAhead(resolver);
+
+        assertEquals(3, resolver.resolved.size());
+        assertEquals("id2", resolver.resolved.get(2).id);
+
+        // Room is only made when one finishes and the cursor moves on
+        window.onResolveFinished(resolver);
+        assertEquals(3, resolver.resolved.size());
+
+        mediaItems.get(0).url = "url0";
+        assertSame(mediaItems.get(0), window.pollReady());
+        window.onResolveFinished(resolver);
+        assertEquals(4, resolver.resolved.size());
+        assertEquals("id3", resolver.resolved.get(3).id);
+    }
+
+    @Test
+    public void skipsAlreadyResolved() {
+        mediaItems.get(1).url = "url1";
+        ResolveWindow window = newWindow(3, 4);
+        window.reset(mediaItems, 0);
+        window.resolveAhead(resolver);
+
+        assertEquals(2, resolver.resolved.size());
+        assertEquals("id0", resolver.resolved.get(0).id);
+        assertEquals("id2", resolver.resolved.get(1).id);
+    }
+
+    @Test
+    public void batchesCountedInBatches() {
+        ResolveWindow window = newWindow(2, 4);
+        window.setBatchSupported(true);
+        window.reset(mediaItems, 0);
+        window.resolveAhead(resolver);
+
+        assertEquals(2, resolver.batches.size());
+        assertEquals(4, resolver.batches.get(0).size());
+        assertEquals("id4", resolver.batches.get(1).get(0).id);
+
+        // Drain the first batch, the last, short, batch goes out
+        for (int i = 0; i < 4; i++) {
+            mediaItems.get(i).url = "url" + i;
+            assertNotNull(window.pollReady());
+        }
+        window.onResolveFinished(resolver);
+        assertEquals(3, resolver.batches.size());
+        assertEquals(2, resolver.batches.get(2).size());
+    }
+
+    @Test
+    public void releasesInOrder() {
+        ResolveWindow window = newWindow(3, 4);
+        window.reset(mediaItems, 0);
+
+        // Responses out of order
+        mediaItems.get(2).url = "url2";
+        mediaItems.get(1).url = "url1";
+        assertNull(window.pollReady());
+
+        mediaItems.get(0).url = "url0";
+        assertEquals("id0", window.pollReady().id);
+        assertEquals("id1", window.pollReady().id);
+        assertEquals("id2", window.pollReady().id);
+        assertNull(window.pollReady());
+        assertEquals(3, window.getCursor());
+    }
+
+    @Test
+    public void skipsFailedAndDrains() {
+        ResolveWindow window = newWindow(3, 4);
+        window.reset(mediaItems.subList(0, 3), 0);
+
+        mediaItems.get(0).failed = true;
+        mediaItems.get(1).url = "url1";
+        mediaItems.get(2).failed = true;
+
+        assertEquals("id1", window.pollReady().id);
+        assertNull(window.pollReady());
+        assertTrue(window.isDrained());
+    }
+
+    @Test
+    public void resetWithoutList() {
+        ResolveWindow window = newWindow(3, 4);
+        window.reset(null, 0);
+        window.resolveAhead(resolver);
+
+        assertTrue(resolver.resolved.isEmpty());
+        assertNull(window.pollReady());
+        assertTrue(window.isDrained());
+    }
+
+    @Test
+    public void skipsHeadPastDeadline() {
+        ResolveWindow window = newWindow(3, 4);
+        window.reset(mediaItems, 0);
+        window.resolveAhead(resolver);
+        assertEquals(clock.now + 1000, window.getHeadDeadline());
+
+        // The ones behind the head are ready but have to wait
+        mediaItems.get(1).url = "url1";
+        mediaItems.get(2).url = "url2";
+        clock.now += 999;
+        assertNull(window.pollReady());
+
+        // Out of time, the head is skipped and the rest go
+        clock.now += 1;
+        assertEquals("id1", window.pollReady().id);
+        assertTrue(mediaItems.get(0).failed);
+        assertEquals("id2", window.pollReady().id);
+        assertNull(window.pollReady());
+
+        // A late answer for the skipped one changes nothing
+        mediaItems.get(0).url = "url0";
+        assertNull(window.pollReady());
+        assertEquals(3, window.getCursor());
+    }
+
+    @Test
+    public void deadlineStartsWhenAsked() {
+        ResolveWindow window = newWindow(1, 4);
+        window.reset(mediaItems, 0);
+        window.resolveAhead(resolver);
+
+        mediaItems.get(0).url = "url0";
+        clock.now += 5000;
+        assertEquals("id0", window.pollReady().id);
+
+        // Not asked for yet, so no deadline to miss
+        assertEquals(-1, window.getHeadDeadline());
+        assertNull(window.pollReady());
+
+        window.onResolveFinished(resolver);
+        assertEquals(clock.now + 1000, window.getHeadDeadline());
+    }
+
+    @Test
+    public void resetClearsDeadlines() {
+        ResolveWindow window = newWindow(3, 4);
+        window.reset(mediaItems, 0);
+        window.resolveAhead(resolver);
+
+        window.reset(mediaItems, 0);
+        clock.now += 2000;
+        assertEquals(-1, window.getHeadDeadline());
+        assertNull(window.pollReady());
+        assertFalse(mediaItems.get(0).failed);
+    }
+}
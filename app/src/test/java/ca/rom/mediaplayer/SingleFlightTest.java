@@ -0,0 +1,92 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for sharing one request between callers
+ */
+public class SingleFlightTest {
+
+    /**
+     * Remembers what it was told, tagged with its name
+     */
+    private static class RecordingCallback implements SingleFlight.Callback<String> {
+        final String name;
+        final List<String> results;
+
+        RecordingCallback(String name, List<String> results) {
+            this.name = name;
+            this.results = results;
+        }
+
+        @Override
+        public void onSuccess(String value) {
+            results.add(name + ":" + value);
+        }
+
+        @Override
+        public void onFailure(Exception error) {
+            results.add(name + ":" + error.getMessage());
+        }
+    }
+
+    private SingleFlight<String, String> flights;
+
+    private List<String> results;
+
+    @Before
+    public void setUp() {
+        flights = new SingleFlight<>();
+        results = new ArrayList<>();
+    }
+
+    @Test
+    public void laterCallersShareTheFirstRequest() {
+        assertTrue(flights.join("a", new RecordingCallback("first", results)));
+        assertFalse(flights.join("a", new RecordingCallback("second", results)));
+        assertTrue(flights.join("b", new RecordingCallback("other", results)));
+        assertEquals(2, flights.getWaiting("a"));
+
+        flights.succeed("a", "url");
+        assertEquals(2, results.size());
+        assertEquals("first:url", results.get(0));
+        assertEquals("second:url", results.get(1));
+        assertEquals(0, flights.getWaiting("a"));
+        assertEquals(1, flights.getWaiting("b"));
+    }
+
+    @Test
+    public void failureGoesToEveryone() {
+        flights.join("a", new RecordingCallback("first", results));
+        flights.join("a", new RecordingCallback("second", results));
+
+        flights.fail("a", new Exception("404"));
+        assertEquals(2, results.size());
+        assertEquals("first:404", results.get(0));
+        assertEquals("second:404", results.get(1));
+
+        // Over, the next one starts afresh
+        assertTrue(flights.join("a", new RecordingCallback("third", results)));
+    }
+
+    @Test
+    public void clearedRequestsTellNobody() {
+        flights.join("a", new RecordingCallback("first", results));
+        flights.clear();
+
+        assertTrue(flights.join("a", new RecordingCallback("second", results)));
+        flights.succeed("a", "url");
+        assertEquals(1, results.size());
+        assertEquals("second:url", results.get(0));
+
+        // Late results for nobody are fine
+        flights.succeed("a", "late");
+        assertEquals(1, results.size());
+    }
+}
@@ -0,0 +1,59 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for keeping failed media URLs out for a while
+ */
+public class UrlQuarantineTest {
+
+    private BackoffPolicyTest.FakeClock clock;
+
+    private UrlQuarantine quarantine;
+
+    @Before
+    public void setUp() {
+        clock = new BackoffPolicyTest.FakeClock();
+        quarantine = new UrlQuarantine(clock, 1000);
+    }
+
+    @Test
+    public void keepsUrlOutUntilTtl() {
+        quarantine.add("http://example.com/a.m3u8");
+
+        assertTrue(quarantine.contains("http://example.com/a.m3u8"));
+        assertFalse(quarantine.contains("http://example.com/b.m3u8"));
+        assertFalse(quarantine.contains(null));
+
+        clock.now += 999;
+        assertTrue(quarantine.contains("http://example.com/a.m3u8"));
+
+        clock.now += 1;
+        assertFalse(quarantine.contains("http://example.com/a.m3u8"));
+        assertEquals(0, quarantine.size());
+    }
+
+    @Test
+    public void failingAgainStartsOver() {
+        quarantine.add("http://example.com/a.m3u8");
+        clock.now += 800;
+        quarantine.add("http://example.com/a.m3u8");
+
+        clock.now += 800;
+        assertTrue(quarantine.contains("http://example.com/a.m3u8"));
+    }
+
+    @Test
+    public void dropsExpiredUrls() {
+        quarantine.add("http://example.com/a.m3u8");
+        clock.now += 500;
+        quarantine.add("http://example.com/b.m3u8");
+        assertEquals(2, quarantine.size());
+
+        clock.now += 500;
+        assertEquals(1, quarantine.size());
+    }
+}
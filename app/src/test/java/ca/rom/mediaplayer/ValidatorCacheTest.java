@@ -0,0 +1,44 @@
+package ca.rom.mediaplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host side tests for remembering response validators
+ */
+public class ValidatorCacheTest {
+
+    @Test
+    public void remembersValidatorsAndValue() throws Exception {
+        ValidatorCache cache = new ValidatorCache(10);
+        cache.put("http://example.com/media/a", "\"1\"", "Mon, 02 Oct 2017 10:00:00 GMT", "http://example.com/a.m3u8");
+
+        ValidatorCache.Entry entry = cache.get("http://example.com/media/a");
+        assertEquals("\"1\"", entry.etag);
+        assertEquals("Mon, 02 Oct 2017 10:00:00 GMT", entry.lastModified);
+        assertEquals("http://example.com/a.m3u8", entry.value);
+    }
+
+    @Test
+    public void forgetsResponsesWithoutValidators() throws Exception {
+        ValidatorCache cache = new ValidatorCache(10);
+        cache.put("http://example.com/media/a", "\"1\"", null, "old");
+        cache.put("http://example.com/media/a", null, null, "new");
+
+        assertNull(cache.get("http://example.com/media/a"));
+    }
+
+    @Test
+    public void dropsLeastRecentlyUsed() throws Exception {
+        ValidatorCache cache = new ValidatorCache(2);
+        cache.put("a", "\"a\"", null, "a");
+        cache.put("b", "\"b\"", null, "b");
+        cache.get("a");
+        cache.put("c", "\"c\"", null, "c");
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+}
@@ -0,0 +1,125 @@
+package ca.rom.mediaplayer.benchmark;
+
+import ca.rom.mediaplayer.MediaItem;
+import ca.rom.mediaplayer.MediaListParser;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares building media items from an org.json tree, the way MediaDataService used to, with
+ * the streaming parser.  Prints time and allocation per parse for a few list sizes.
+ */
+public class MediaListParserBenchmark {
+
+    private static final int[] SIZES = {10, 1000, 10000};
+
+    private static final int WARMUP_ITERATIONS = 20;
+
+    private static final int MEASURED_ITERATIONS = 50;
+
+    /**
+     * The old way: parse the tree, serialize it again for the log, then copy it out
+     */
+    private static List<MediaItem> parseTree(String body) throws Exception {
+        JSONObject response = new JSONObject(body);
+        response.toString();
+        JSONArray mediaItems = response.getJSONArray("media_items");
+        List<MediaItem> mediaItemList = new ArrayList<>(mediaItems.length());
+        for (int i = 0; i < mediaItems.length(); i++) {
+            mediaItemList.add(new MediaItem(mediaItems.getString(i), i));
+        }
+        return mediaItemList;
+    }
+
+    private static List<MediaItem> parseStreaming(MediaListParser parser, String body) throws Exception {
+        return parser.parseMediaList(new StringReader(body)).mediaItems;
+    }
+
+    @Test
+    public void compareParsers() throws Exception {
+        final MediaListParser parser = new MediaListParser();
+
+        for (int size : SIZES) {
+            final String body = mediaListBody(size);
+
+            Result tree = measure(new Parse() {
+                @Override
+                public int run() throws Exception {
+                    return parseTree(body).size();
+                }
+            });
+            Result streaming = measure(new Parse() {
+                @Override
+                public int run() throws Exception {
+                    return parseStreaming(parser, body).size();
+                }
+            });
+
+            System.out.println(String.format("media list of %6d ids: org.json %9.1fus %11d bytes, streaming %9.1fus %11d bytes",
+                    size, tree.micros, tree.bytes, streaming.micros, streaming.bytes));
+        }
+    }
+
+    /**
+     * A media list response with random GUIDs, like the real API
+     */
+    static String mediaListBody(int size) {
+        StringBuilder body = new StringBuilder("{\"media_items\": [");
+        for (int i = 0; i < size; i++) {
+            body.append(i > 0 ? ", " : "").append('"').append(UUID.randomUUID()).append('"');
+        }
+        return body.append("]}").toString();
+    }
+
+    interface Parse {
+        int run() throws Exception;
+    }
+
+    static class Result {
+        double micros;
+        long bytes;
+    }
+
+    static Result measure(Parse parse) throws Exception {
+        int sink = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += parse.run();
+        }
+
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            sink += parse.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocatedBytes() - startBytes;
+
+        if (sink == 42) {
+            System.out.println("Unlikely, but keeps the JIT honest");
+        }
+
+        Result result = new Result();
+        result.micros = elapsed / 1000.0 / MEASURED_ITERATIONS;
+        result.bytes = bytes / MEASURED_ITERATIONS;
+        return result;
+    }
+
+    /**
+     * Bytes allocated by this thread so far, -1 if the JVM can't tell us
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,482 @@
+package ca.rom.mediaplayer.benchmark;
+
+import ca.rom.mediaplayer.Clock;
+import ca.rom.mediaplayer.EventStream;
+import ca.rom.mediaplayer.MediaDataService;
+import ca.rom.mediaplayer.MediaItem;
+import ca.rom.mediaplayer.PlaybackMetrics;
+import ca.rom.mediaplayer.ServiceExecutor;
+import ca.rom.mediaplayer.VolleyTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ServerSocketFactory;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Drives the real MediaDataService against an in process server with latency and jitter, over
+ * Volley like the app: the media list is fetched and parsed, media items are resolved through
+ * the request lanes and the resolve window, and handed off in playback order to a listener on
+ * another thread that asks for more as a player would.  Reports throughput, time to first item
+ * and allocation per item for playlists of 10, 1k and 100k ids.
+ *
+ * Run with ./gradlew testDebugUnitTest -Pbenchmark, tune with -Pbenchmark.latencyMs=5,
+ * -Pbenchmark.jitterMs=5 and -Pbenchmark.networkThreads=1
+ */
+public class ResolutionPipelineBenchmark {
+
+    /**
+     * Fixed server latency per response
+     */
+    private static final long LATENCY_MS = Long.getLong("benchmark.latencyMs", 2);
+
+    /**
+     * Up to this much random latency is added on top
+     */
+    private static final long JITTER_MS = Long.getLong("benchmark.jitterMs", 2);
+
+    /**
+     * Volley's network dispatchers, the app has as many as the lanes let out at once
+     */
+    private static final int NETWORK_THREADS = Integer.getInteger("benchmark.networkThreads",
+            new MediaDataService.Config().getMaxInFlight());
+
+    /**
+     * Same as media_resolve_ahead
+     */
+    private static final int RESOLVE_AHEAD = 3;
+
+    /**
+     * Same as media_batch_size
+     */
+    private static final int BATCH_SIZE = 10;
+
+    /**
+     * Same as media_item_deadline_seconds
+     */
+    private static final long SLOT_TIMEOUT_MS = 15 * 1000;
+
+    /**
+     * Same as media_prepare_ahead, the listener holds as many items as the player would
+     */
+    private static final int PREPARE_AHEAD = 2;
+
+    /**
+     * Longest we wait for a single run
+     */
+    private static final long RUN_TIMEOUT_MINUTES = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+
+    /**
+     * What the server hands out as the media list
+     */
+    private volatile List<String> mediaIds;
+
+    /**
+     * Whether the server says it can resolve in batches
+     */
+    private volatile boolean batchResolve;
+
+    @Before
+    public void setUp() throws IOException {
+        // Its per request logging would swamp the numbers
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+
+        server = new MockWebServer();
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        server.setDispatcher(new Dispatcher() {
+            private final Random random = new Random();
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = request.getPath();
+                String body;
+                if (path.equals("/media")) {
+                    body = mediaListBody();
+                } else if (path.startsWith("/media?ids=")) {
+                    body = mediaItemsBody(path.substring("/media?ids=".length()).split(","));
+                } else if (path.startsWith("/media/")) {
+                    body = mediaItemsBody(new String[] {path.substring("/media/".length())});
+                } else {
+                    return new MockResponse().setResponseCode(404);
+                }
+
+                long delayMs;
+                synchronized (random) {
+                    delayMs = LATENCY_MS + (JITTER_MS > 0 ? (long) (random.nextDouble() * JITTER_MS) : 0);
+                }
+                // Server think time
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new MockResponse()
+                        .setHeader("Content-Type", "application/json; charset=utf-8")
+                        .setBody(body);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void resolvePlaylists() throws Exception {
+        System.out.println(String.format("latency %dms + up to %dms jitter, %d network threads, resolve ahead %d, batch size %d, prepare ahead %d",
+                LATENCY_MS, JITTER_MS, NETWORK_THREADS, RESOLVE_AHEAD, BATCH_SIZE, PREPARE_AHEAD));
+
+        // Let the JIT and the connection pool settle
+        for (int i = 0; i < 3; i++) {
+            run(1000, true);
+        }
+
+        report(10, true, 20);
+        report(1000, true, 5);
+        report(100000, true, 1);
+
+        // Single lookups are one request per item, too slow for the big list
+        report(10, false, 20);
+        report(1000, false, 2);
+    }
+
+    private void report(int size, boolean batch, int iterations) throws Exception {
+        double itemsPerSecond = 0;
+        double firstItemMs = 0;
+        double bytesPerItem = 0;
+        for (int i = 0; i < iterations; i++) {
+            Run run = run(size, batch);
+            itemsPerSecond += size / (run.totalNanos / 1e9);
+            firstItemMs += run.firstItemNanos / 1e6;
+            bytesPerItem += (double) run.allocatedBytes / size;
+        }
+
+        System.out.println(String.format("%6d ids, %s: %10.1f items/s, first item %8.2fms, %10.0f bytes/item",
+                size, batch ? "batch " : "single", itemsPerSecond / iterations, firstItemMs / iterations,
+                bytesPerItem / iterations));
+    }
+
+    /**
+     * What one run through the pipeline measured
+     */
+    static class Run {
+        long totalNanos;
+        long firstItemNanos;
+        long allocatedBytes;
+    }
+
+    /**
+     * Resolves a fresh media list of the given size from the top
+     */
+    private Run run(int size, boolean batch) throws Exception {
+        List<String> ids = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ids.add(UUID.randomUUID().toString());
+        }
+        mediaIds = ids;
+        batchResolve = batch;
+
+        MediaDataService.Config config = new MediaDataService.Config();
+        config.mediaListUrl = server.url("/media").toString();
+        config.resolveAhead = RESOLVE_AHEAD;
+        config.batchSize = BATCH_SIZE;
+        config.itemDeadlineMs = SLOT_TIMEOUT_MS;
+        config.emitAhead = 1 + PREPARE_AHEAD;
+        config.snapshotFile = new File(folder.newFolder(), "playlist.snapshot");
+        config.cacheDir = folder.newFolder();
+
+        Pipeline pipeline = new Pipeline(config, new PlaybackMetrics(folder.newFile(), 60 * 1000), size);
+        try {
+            return pipeline.run();
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    /**
+     * MockWebServer writes the headers and the body separately, with Nagle on a reused connection
+     * waits out the client's delayed ACK and adds 40ms to every response
+     */
+    static class NoDelayServerSocketFactory extends ServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = super.accept();
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private String mediaListBody() {
+        StringBuilder body = new StringBuilder("{\"media_items\": [");
+        List<String> ids = mediaIds;
+        for (int i = 0; i < ids.size(); i++) {
+            body.append(i > 0 ? ", " : "").append('"').append(ids.get(i)).append('"');
+        }
+        return body.append("], \"batch_resolve\": ").append(batchResolve).append('}').toString();
+    }
+
+    private static String mediaItemsBody(String[] ids) {
+        StringBuilder body = new StringBuilder("{\"id\": [");
+        for (int i = 0; i < ids.length; i++) {
+            body.append(i > 0 ? ", " : "")
+                    .append("{\"quality\": \"auto\", \"duration\": 30, \"id\": \"").append(ids[i])
+                    .append("\", \"url\": \"https://example.com/media/").append(ids[i]).append("/index.m3u8\"}");
+        }
+        return body.append("]}").toString();
+    }
+
+    /**
+     * Runs tasks one at a time on a thread of its own, the playback thread's stand in
+     */
+    static class SerialExecutor implements ServiceExecutor {
+        private final ScheduledExecutorService executor;
+
+        /**
+         * What is scheduled for each task, so it can be cancelled
+         */
+        private final Map<Runnable, List<ScheduledFuture<?>>> scheduled = new HashMap<>();
+
+        SerialExecutor(ThreadFactory threadFactory) {
+            executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            executeDelayed(runnable, 0);
+        }
+
+        @Override
+        public synchronized void executeDelayed(final Runnable runnable, long delayMs) {
+            final List<ScheduledFuture<?>> futures;
+            if (scheduled.containsKey(runnable)) {
+                futures = scheduled.get(runnable);
+            } else {
+                futures = new ArrayList<>();
+                scheduled.put(runnable, futures);
+            }
+            final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+            future[0] = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // Scheduling holds the lock, so the future is in the list by now
+                    synchronized (SerialExecutor.this) {
+                        futures.remove(future[0]);
+                        if (futures.isEmpty() && scheduled.get(runnable) == futures) {
+                            scheduled.remove(runnable);
+                        }
+                    }
+                    runnable.run();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+            futures.add(future[0]);
+        }
+
+        @Override
+        public synchronized void cancel(Runnable runnable) {
+            List<ScheduledFuture<?>> futures = scheduled.remove(runnable);
+            if (futures == null) {
+                return;
+            }
+            for (ScheduledFuture<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * One media list worth of the real service, over Volley, with a listener that takes items
+     * the way the player does: as many as it has room for, asking for another as each one is
+     * done with
+     */
+    static class Pipeline implements EventStream.Listener<MediaItem> {
+
+        private final int expected;
+
+        private final SerialExecutor executor = new SerialExecutor(threadFactory("playback"));
+
+        private final ExecutorService listener = Executors.newSingleThreadExecutor(threadFactory("listener"));
+
+        private final VolleyTransport transport;
+
+        private final MediaDataService service;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile Throwable failure;
+
+        private long startNanos;
+
+        private long firstItemNanos;
+
+        private int received;
+
+        Pipeline(MediaDataService.Config config, PlaybackMetrics metrics, int expected) {
+            this.expected = expected;
+            transport = new VolleyTransport(new OkHttpClient(), config.cacheDir, NETWORK_THREADS, executor);
+            service = new MediaDataService(config, transport, executor, Clock.SYSTEM, metrics);
+            service.addListener(this, listener);
+        }
+
+        private static ThreadFactory threadFactory(final String name) {
+            return new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "pipeline-" + name);
+                }
+            };
+        }
+
+        Run run() throws Exception {
+            Map<Long, Long> startBytes = allocatedBytes();
+            startNanos = System.nanoTime();
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    service.refreshMediaList();
+                }
+            });
+
+            if (!done.await(RUN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                throw new AssertionError("Timed out after " + received + " of " + expected + " media items");
+            }
+            if (failure != null) {
+                throw new AssertionError(failure);
+            }
+
+            Run run = new Run();
+            run.totalNanos = System.nanoTime() - startNanos;
+            run.firstItemNanos = firstItemNanos;
+            for (Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+                Long before = startBytes.get(entry.getKey());
+                run.allocatedBytes += entry.getValue() - (before == null ? 0 : before);
+            }
+            return run;
+        }
+
+        void shutdown() throws InterruptedException {
+            final CountDownLatch released = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    service.release();
+                    released.countDown();
+                }
+            });
+            released.await(10, TimeUnit.SECONDS);
+            executor.shutdown();
+            listener.shutdownNow();
+        }
+
+        @Override
+        public void onEvent(MediaItem mediaItem) {
+            if (received++ == 0) {
+                firstItemNanos = System.nanoTime() - startNanos;
+            }
+            if (mediaItem.sequenceNumber != received - 1) {
+                fail(new IllegalStateException("Out of order: " + mediaItem.sequenceNumber + " at " + (received - 1)));
+                return;
+            }
+            if (received == expected) {
+                done.countDown();
+                return;
+            }
+
+            // Done with it straight away, a player would be once it played
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    service.requestMediaItems(1);
+                }
+            });
+        }
+
+        private void fail(Throwable e) {
+            failure = e;
+            done.countDown();
+        }
+
+        /**
+         * Bytes allocated so far by each live thread but the server's, Volley's threads included
+         */
+        private static Map<Long, Long> allocatedBytes() {
+            Map<Long, Long> bytes = new HashMap<>();
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+                return bytes;
+            }
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("MockWebServer")) {
+                    continue;
+                }
+                long threadBytes = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(thread.getId());
+                if (threadBytes > 0) {
+                    bytes.put(thread.getId(), threadBytes);
+                }
+            }
+            return bytes;
+        }
+    }
+}